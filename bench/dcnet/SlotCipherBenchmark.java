@@ -0,0 +1,49 @@
+package dcnet;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * A server's pad for one slot: one keystream per client it
+ * shares a secret with.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class SlotCipherBenchmark {
+	@Param({"10", "100", "1000", "10000"})
+	public int secrets;
+
+	@Param({"1024"})
+	public int slotLength;
+
+	@Param({"false", "true"})
+	public boolean counterCipher;
+
+	private SlotCipher cipher;
+	private byte[] slot;
+	private int slotIndex;
+
+	@Setup
+	public void setup() {
+		long[] keys = new long[secrets];
+		for (int i = 0; i < keys.length; i++) {
+			keys[i] = i;
+		}
+		cipher = counterCipher ? new CounterSlotCipher(keys) : new SlotCipher(keys);
+		slot = new byte[slotLength];
+	}
+
+	@Benchmark
+	public byte[] xorKeyStream() {
+		return cipher.xorKeyStream(slot, 0, slotIndex++, 0);
+	}
+}
@@ -0,0 +1,119 @@
+package dcnet;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * One slot's round trip over loopback: write a slot to every
+ * connection and aggregate what comes back, with each peer
+ * simply echoing what it receives.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class SocketUtilsBenchmark {
+	@Param({"1", "8", "32"})
+	public int connections;
+
+	@Param({"1024"})
+	public int slotLength;
+
+	private ServerSocketChannel listener;
+	private Connection[] sockets;
+	private SocketChannel[] peers;
+	private ChannelGroup group;
+	private Socket[] groupPeers;
+
+	private byte[] buffer, scratch;
+
+	@Setup
+	public void setup() throws IOException {
+		listener = ServerSocketChannel.open();
+		listener.socket().bind(new InetSocketAddress("localhost", 0));
+		final int port = listener.socket().getLocalPort();
+
+		// Sockets for SocketUtils, echoed by peer channels...
+		sockets = new Connection[connections];
+		peers = new SocketChannel[connections];
+		for (int i = 0; i < connections; i++) {
+			sockets[i] = new TcpTransport.TcpConnection(new Socket("localhost", port));
+			peers[i] = listener.accept();
+			echo(peers[i].socket());
+		}
+
+		// ...and channels for ChannelGroup, echoed by peer sockets.
+		SocketChannel[] channels = new SocketChannel[connections];
+		groupPeers = new Socket[connections];
+		for (int i = 0; i < connections; i++) {
+			groupPeers[i] = new Socket("localhost", port);
+			channels[i] = listener.accept();
+			echo(groupPeers[i]);
+		}
+		group = new ChannelGroup(channels);
+
+		buffer = new byte[slotLength];
+		scratch = new byte[slotLength];
+	}
+
+	private void echo(final Socket socket) {
+		Thread thread = new Thread(new Runnable() {
+			public void run() {
+				try {
+					InputStream is = socket.getInputStream();
+					OutputStream os = socket.getOutputStream();
+					byte[] chunk = new byte[8192];
+					int n;
+					while ((n = is.read(chunk)) >= 0) {
+						os.write(chunk, 0, n);
+					}
+				} catch (IOException e) {
+					// Torn down.
+				}
+			}
+		});
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		for (Connection connection : sockets) {
+			connection.close();
+		}
+		for (Socket socket : groupPeers) {
+			socket.close();
+		}
+		group.close();
+		listener.close();
+	}
+
+	@Benchmark
+	public byte[] socketRoundTrip() throws IOException {
+		SocketUtils.write(buffer, sockets);
+		SocketUtils.read(buffer, scratch, sockets);
+		return buffer;
+	}
+
+	@Benchmark
+	public byte[] channelGroupRoundTrip() throws IOException {
+		group.write(buffer);
+		group.read(buffer);
+		return buffer;
+	}
+}
@@ -0,0 +1,62 @@
+package dcnet;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * The per-byte work every client and server does on every
+ * attempt: applying a keystream and folding in ciphertexts.
+ * The bytewise variants are the fallback kernels, for
+ * comparison.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class XORCipherBenchmark {
+	@Param({"64", "1024", "16384"})
+	public int slotLength;
+
+	private XORCipher cipher;
+	private byte[] src, dst;
+
+	@Setup
+	public void setup() {
+		cipher = new XORCipher(42);
+		src = new byte[slotLength];
+		dst = new byte[slotLength];
+		new Random(42).nextBytes(src);
+	}
+
+	@Benchmark
+	public byte[] xorKeyStream() {
+		cipher.xorKeyStream(dst, dst);
+		return dst;
+	}
+
+	@Benchmark
+	public byte[] xorKeyStreamBytewise() {
+		cipher.xorKeyStreamBytewise(dst, dst);
+		return dst;
+	}
+
+	@Benchmark
+	public byte[] xorBytes() {
+		XORCipher.xorBytes(src, 0, dst, 0, slotLength);
+		return dst;
+	}
+
+	@Benchmark
+	public byte[] xorBytesBytewise() {
+		XORCipher.xorBytesBytewise(src, 0, dst, 0, slotLength);
+		return dst;
+	}
+}
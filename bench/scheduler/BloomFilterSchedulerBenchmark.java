@@ -0,0 +1,59 @@
+package scheduler;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Building a client's schedule for a round from scratch.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class BloomFilterSchedulerBenchmark {
+	@Param({"128", "1024", "16384"})
+	public int elements;
+
+	@Param({"0.05"})
+	public double fpr;
+
+	@Param({"1"})
+	public int slotsPerElement;
+
+	@Param({"1", "4"})
+	public int threads;
+
+	private byte[][] values;
+
+	@Setup
+	public void setup() throws Exception {
+		values = new byte[elements][];
+		for (int i = 0; i < elements; i++) {
+			values[i] = Integer.toString(i).getBytes("ISO-8859-1");
+		}
+	}
+
+	@Benchmark
+	public BloomFilterScheduler add() {
+		BloomFilterScheduler scheduler = new BloomFilterScheduler(elements, fpr);
+		scheduler.setThreads(threads);
+		for (byte[] value : values) {
+			scheduler.add(value);
+		}
+		return scheduler;
+	}
+
+	@Benchmark
+	public BloomFilterScheduler addAndFinalize() {
+		BloomFilterScheduler scheduler = add();
+		scheduler.finalizeSchedule(slotsPerElement);
+		return scheduler;
+	}
+}
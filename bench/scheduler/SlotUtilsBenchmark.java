@@ -0,0 +1,52 @@
+package scheduler;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Encoding a slot on the client, and checking it on the way
+ * back out of the servers.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class SlotUtilsBenchmark {
+	@Param({"64", "1024", "16384"})
+	public int slotLength;
+
+	private byte[] slot;
+	private SlotUtils.SlotMetadata meta;
+
+	@Setup
+	public void setup() {
+		slot = new byte[slotLength];
+		new Random(42).nextBytes(slot);
+		SlotUtils.encode(slot, slotLength - SlotUtils.METADATA_BYTES);
+		meta = new SlotUtils.SlotMetadata();
+	}
+
+	@Benchmark
+	public byte[] encode() {
+		SlotUtils.encode(slot, slotLength - SlotUtils.METADATA_BYTES);
+		return slot;
+	}
+
+	@Benchmark
+	public SlotUtils.SlotMetadata decode() {
+		return SlotUtils.decode(slot);
+	}
+
+	@Benchmark
+	public SlotUtils.SlotMetadata decodeInPlace() {
+		return SlotUtils.decode(slot, 0, slotLength, meta);
+	}
+}
@@ -0,0 +1,65 @@
+package scheduler.control;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import scheduler.BloomFilterScheduler;
+
+/**
+ * Setting up a round's control slot and processing its result,
+ * against a schedule filled to the estimated element count.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class BinaryControlSlotBenchmark {
+	@Param({"128", "1024", "16384", "131072"})
+	public int elements;
+
+	@Param({"8", "16", "32"})
+	public int attempts;
+
+	private BloomFilterScheduler scheduler;
+	private byte[] result;
+
+	@Setup
+	public void setup() throws Exception {
+		scheduler = new BloomFilterScheduler(elements, 0.05);
+		for (int i = 0; i < elements; i++) {
+			scheduler.add(Integer.toString(i));
+		}
+		scheduler.finalizeSchedule(1);
+
+		// Stand-in for the combined control slot of many clients.
+		result = new byte[new BinaryControlSlot(scheduler, attempts).getLength()];
+		new Random(42).nextBytes(result);
+	}
+
+	@Benchmark
+	public ControlSlot construct() {
+		return new BinaryControlSlot(scheduler, attempts);
+	}
+
+	@Benchmark
+	public ControlSlot setResult() {
+		ControlSlot controlSlot = new BinaryControlSlot(scheduler, attempts);
+		controlSlot.setResult(result);
+		return controlSlot;
+	}
+
+	@Benchmark
+	public ControlSlot setResultPruning() {
+		ControlSlot controlSlot = new PruningBinaryControlSlot(scheduler, attempts);
+		controlSlot.setResult(result);
+		return controlSlot;
+	}
+}
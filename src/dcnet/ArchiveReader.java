@@ -0,0 +1,208 @@
+package dcnet;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Answers "which of rounds A..B disclosed element X" from a
+ * RoundArchive, by memory-mapping it and binary searching each
+ * round's index. Opening the archive only reads block headers,
+ * so it's cheap however many rounds there are; any incomplete
+ * block at the end is ignored. Rounds are numbered across every
+ * run that appended to the archive, not per run.
+ */
+public class ArchiveReader implements Closeable {
+	// Blocks are mapped in runs of up to this many bytes.
+	private static final long SEGMENT_BYTES = 1L << 30;
+
+	private final FileChannel channel;
+
+	// Per block: its round, where it starts, how many records
+	// it has, where its index starts (relative to the block)
+	// and which segment it's in.
+	private int[] rounds = new int[64];
+	private long[] starts = new long[64];
+	private int[] records = new int[64];
+	private int[] indexOffsets = new int[64];
+	private int[] segmentOf = new int[64];
+	private int blocks;
+
+	private long[] segmentStarts = new long[16];
+	private long[] segmentEnds = new long[16];
+	private MappedByteBuffer[] segments = new MappedByteBuffer[16];
+	private int segmentCount;
+
+	public ArchiveReader(String file) throws IOException {
+		this.channel = FileChannel.open(Paths.get(file), StandardOpenOption.READ);
+		scan();
+	}
+
+	/**
+	 * @return the number of complete rounds in the archive
+	 */
+	public int getRoundCount() {
+		return blocks;
+	}
+
+	/**
+	 * @return the rounds in [fromRound, toRound] in which the
+	 * given element was disclosed, in archive order
+	 */
+	public int[] findRounds(byte[] element, int fromRound, int toRound) throws IOException {
+		final long hash = RoundArchive.hash(element, 0, element.length);
+		int[] found = new int[16];
+		int count = 0;
+		for (int b = 0; b < blocks; b++) {
+			if (rounds[b] < fromRound || rounds[b] > toRound || records[b] == 0) {
+				continue;
+			}
+			if (contains(b, hash, element)) {
+				if (count == found.length) {
+					found = Arrays.copyOf(found, count * 2);
+				}
+				found[count++] = rounds[b];
+			}
+		}
+		return Arrays.copyOf(found, count);
+	}
+
+	public void close() throws IOException {
+		channel.close();
+	}
+
+	/**
+	 * Binary search block b's index for hash, then compare the
+	 * data of every record with that hash against element.
+	 */
+	private boolean contains(int b, long hash, byte[] element) throws IOException {
+		final ByteBuffer segment = getSegment(segmentOf[b]);
+		final int block = (int) (starts[b] - segmentStarts[segmentOf[b]]);
+		final int index = block + indexOffsets[b];
+
+		int lo = 0, hi = records[b];
+		while (lo < hi) {
+			final int mid = (lo + hi) >>> 1;
+			if (segment.getLong(index + mid * RoundArchive.INDEX_BYTES) < hash) {
+				lo = mid + 1;
+			} else {
+				hi = mid;
+			}
+		}
+		for (int i = lo; i < records[b]; i++) {
+			final int entry = index + i * RoundArchive.INDEX_BYTES;
+			if (segment.getLong(entry) != hash) {
+				break;
+			}
+			final int record = block + segment.getInt(entry + 8);
+			final int length = segment.getInt(record + 6);
+			if (length == element.length
+					&& matches(segment, record + RoundArchive.RECORD_BYTES, element)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static boolean matches(ByteBuffer buffer, int offset, byte[] element) {
+		for (int i = 0; i < element.length; i++) {
+			if (buffer.get(offset + i) != element[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Walk the block headers, checking each against its footer,
+	 * and group the blocks into segments to be mapped.
+	 */
+	private void scan() throws IOException {
+		final long size = channel.size();
+		final ByteBuffer header = ByteBuffer.allocate(RoundArchive.HEADER_BYTES);
+		final ByteBuffer footer = ByteBuffer.allocate(RoundArchive.FOOTER_BYTES);
+
+		long position = 0;
+		for (long length; (length = RoundArchive.checkBlock(channel, position, size,
+					header, footer)) > 0; ) {
+			if (blocks == rounds.length) {
+				rounds = Arrays.copyOf(rounds, blocks * 2);
+				starts = Arrays.copyOf(starts, blocks * 2);
+				records = Arrays.copyOf(records, blocks * 2);
+				indexOffsets = Arrays.copyOf(indexOffsets, blocks * 2);
+				segmentOf = Arrays.copyOf(segmentOf, blocks * 2);
+			}
+			rounds[blocks] = header.getInt(8);
+			starts[blocks] = position;
+			records[blocks] = header.getInt(12);
+			indexOffsets[blocks] = footer.getInt(12);
+			segmentOf[blocks] = addToSegment(position, position + length);
+			blocks++;
+
+			position += length;
+		}
+	}
+
+	/**
+	 * @return the segment [start, end) goes in, starting a new
+	 * one if the current one would get too big
+	 */
+	private int addToSegment(long start, long end) {
+		final int current = segmentCount - 1;
+		if (current >= 0 && end - segmentStarts[current] <= SEGMENT_BYTES) {
+			segmentEnds[current] = end;
+			return current;
+		}
+		if (segmentCount == segmentStarts.length) {
+			segmentStarts = Arrays.copyOf(segmentStarts, segmentCount * 2);
+			segmentEnds = Arrays.copyOf(segmentEnds, segmentCount * 2);
+			segments = Arrays.copyOf(segments, segmentCount * 2);
+		}
+		segmentStarts[segmentCount] = start;
+		segmentEnds[segmentCount] = end;
+		return segmentCount++;
+	}
+
+	private ByteBuffer getSegment(int s) throws IOException {
+		if (segments[s] == null) {
+			segments[s] = channel.map(FileChannel.MapMode.READ_ONLY,
+					segmentStarts[s], segmentEnds[s] - segmentStarts[s]);
+		}
+		return segments[s];
+	}
+
+	/**
+	 * Usage: ArchiveReader archive fromRound toRound element...
+	 * Prints the rounds each element was disclosed in, one
+	 * element per line.
+	 */
+	public static void main(String[] args) throws IOException {
+		if (args.length < 4) {
+			System.err.println("usage: ArchiveReader archive fromRound toRound element...");
+			System.exit(1);
+		}
+		final int fromRound = Integer.valueOf(args[1]);
+		final int toRound = Integer.valueOf(args[2]);
+
+		try (ArchiveReader reader = new ArchiveReader(args[0])) {
+			for (int i = 3; i < args.length; i++) {
+				int[] found = reader.findRounds(getBytes(args[i]), fromRound, toRound);
+				StringBuilder sb = new StringBuilder(args[i]).append(':');
+				for (int round : found) {
+					sb.append(' ').append(round);
+				}
+				System.out.println(sb);
+			}
+		}
+	}
+
+	private static byte[] getBytes(String element) throws UnsupportedEncodingException {
+		return element.getBytes("ISO-8859-1");
+	}
+}
@@ -8,10 +8,24 @@ public abstract class Base {
 
 	public static final String PROP_SLOT_ATTEMPTS = "slot.attemptsPerSlot";
 	public static final String PROP_SLOT_CONTROL = "slot.controlSlotType";
+	public static final String PROP_SLOT_RESERVE = "slot.reserveLengths";
+	public static final String PROP_SLOT_RETRIES = "slot.retrySubRounds";
 
 	public static final String PROP_SLOT_LENGTH = "slot.defaultLength";
+	public static final String PROP_SLOT_BATCH = "slot.batchSize";
+	public static final String PROP_SLOT_COMPACT = "slot.compactDownstream";
 
 	public static final String PROP_DCNET_SERVERS = "dcnet.servers";
+	public static final String PROP_DCNET_COUNTER = "dcnet.counterCipher";
+	public static final String PROP_DCNET_ROUNDS = "dcnet.rounds";
+	public static final String PROP_DCNET_WEIGHTS = "dcnet.serverWeights";
+
+	public static final String PROP_OUTPUT_QUEUE = "output.queueLength";
+
+	public static final String PROP_SOCKET_NODELAY = "socket.tcpNoDelay";
+	public static final String PROP_SOCKET_SEND_BUFFER = "socket.sendBuffer";
+	public static final String PROP_SOCKET_RECEIVE_BUFFER = "socket.receiveBuffer";
+	public static final String PROP_SOCKET_DIRECT = "socket.directBuffers";
 
 	protected Properties properties;
 
@@ -20,10 +34,20 @@ public abstract class Base {
 
 	protected int attemptsPerSlot;
 	protected boolean controlSlotType;
+	protected boolean reserveLengths;
+	protected int retrySubRounds;
 
 	protected int defaultSlotLength;
+	protected int batchSize;
+	protected boolean compactDownstream;
 
 	protected String[] servers;
+	protected boolean counterCipher;
+	protected int rounds;
+
+	protected int outputQueueLength;
+
+	protected Transport transport;
 
 	public Base(Properties properties) {
 		this.properties = properties;
@@ -33,13 +57,36 @@ public abstract class Base {
 
 		this.attemptsPerSlot = Integer.valueOf(properties.getProperty(PROP_SLOT_ATTEMPTS, "8"));
 		this.controlSlotType = Boolean.valueOf(properties.getProperty(PROP_SLOT_CONTROL, "false"));
+		this.reserveLengths = Boolean.valueOf(properties.getProperty(PROP_SLOT_RESERVE, "false"));
+		this.retrySubRounds = Integer.valueOf(properties.getProperty(PROP_SLOT_RETRIES, "0"));
 
 		this.defaultSlotLength = Integer.valueOf(properties.getProperty(PROP_SLOT_LENGTH, "512"));
+		this.batchSize = Integer.valueOf(properties.getProperty(PROP_SLOT_BATCH, "1"));
+		this.compactDownstream = Boolean.valueOf(properties.getProperty(PROP_SLOT_COMPACT, "true"));
 		
 		try {
 			this.servers = properties.getProperty(PROP_DCNET_SERVERS).split(",");
 		} catch (NullPointerException e) {
 			// leave servers as null
 		}
+
+		this.counterCipher = Boolean.valueOf(properties.getProperty(PROP_DCNET_COUNTER, "false"));
+		this.rounds = Integer.valueOf(properties.getProperty(PROP_DCNET_ROUNDS, "1"));
+
+		this.outputQueueLength = Integer.valueOf(properties.getProperty(PROP_OUTPUT_QUEUE, "4096"));
+
+		this.transport = new TcpTransport(
+				Boolean.valueOf(properties.getProperty(PROP_SOCKET_NODELAY, "true")),
+				Integer.valueOf(properties.getProperty(PROP_SOCKET_SEND_BUFFER, "0")),
+				Integer.valueOf(properties.getProperty(PROP_SOCKET_RECEIVE_BUFFER, "0")),
+				Boolean.valueOf(properties.getProperty(PROP_SOCKET_DIRECT, "true")));
+	}
+
+	/**
+	 * Use something other than TCP to reach the other
+	 * participants; must be set before connecting.
+	 */
+	public void setTransport(Transport transport) {
+		this.transport = transport;
 	}
 }
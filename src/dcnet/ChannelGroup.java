@@ -0,0 +1,183 @@
+package dcnet;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+
+/**
+ * A set of non-blocking connections driven by a Selector, so
+ * that reads from all of them proceed in parallel: each
+ * connection's bytes are XOR'd into the running total as soon
+ * as they arrive, in whatever order the connections become
+ * readable. Once grouped, the channels must only be used
+ * through the group. Reads land in (and are XOR'd from) pooled
+ * direct buffers, and writes go out of one shared direct copy.
+ */
+public class ChannelGroup {
+	private static class State {
+		public final SocketChannel channel;
+		public ByteBuffer scratch;
+		public ByteBuffer out;
+		public int xored;
+
+		public State(SocketChannel channel) {
+			this.channel = channel;
+		}
+	}
+
+	private State[] states;
+	private Selector readSelector;
+	private Selector writeSelector;
+
+	// What's being written to every channel.
+	private ByteBuffer out;
+
+	// If set, gets how long each channel's read took.
+	private Histogram readLatency;
+
+	public ChannelGroup(SocketChannel... channels) throws IOException {
+		readSelector = Selector.open();
+		writeSelector = Selector.open();
+		states = new State[channels.length];
+		for (int i = 0; i < channels.length; i++) {
+			states[i] = new State(channels[i]);
+			channels[i].configureBlocking(false);
+			channels[i].register(readSelector, 0, states[i]);
+			channels[i].register(writeSelector, 0, states[i]);
+		}
+	}
+
+	public int size() {
+		return states.length;
+	}
+
+	/**
+	 * Record, for every channel on every read, the time from the
+	 * start of the read until all of its bytes had arrived.
+	 */
+	public void setReadLatency(Histogram readLatency) {
+		this.readLatency = readLatency;
+	}
+
+	/**
+	 * Read buffer.length bytes from every channel, XORing them
+	 * all into buffer.
+	 */
+	public void read(byte[] buffer) throws IOException {
+		read(buffer, buffer.length);
+	}
+
+	/**
+	 * Read length bytes from every channel, XORing them all into
+	 * the start of buffer.
+	 */
+	public void read(byte[] buffer, int length) throws IOException {
+		final long start = System.nanoTime();
+		int pending = 0;
+		for (State state : states) {
+			if (state.scratch == null || state.scratch.capacity() < length) {
+				DirectBufferPool.release(state.scratch);
+				state.scratch = DirectBufferPool.acquire(length);
+			}
+			state.scratch.clear().limit(length);
+			state.xored = 0;
+			if (length > 0) {
+				state.channel.keyFor(readSelector).interestOps(SelectionKey.OP_READ);
+				pending++;
+			}
+		}
+
+		while (pending > 0) {
+			readSelector.select();
+			Iterator<SelectionKey> keys = readSelector.selectedKeys().iterator();
+			while (keys.hasNext()) {
+				SelectionKey key = keys.next();
+				keys.remove();
+
+				State state = (State) key.attachment();
+				if (state.channel.read(state.scratch) < 0) {
+					throw new EOFException("connection closed mid-slot");
+				}
+
+				// Fold in whatever arrived since last time.
+				final int position = state.scratch.position();
+				XORCipher.xorBytes(state.scratch, state.xored,
+						buffer, state.xored, position - state.xored);
+				state.xored = position;
+
+				if (!state.scratch.hasRemaining()) {
+					key.interestOps(0);
+					pending--;
+					if (readLatency != null) {
+						readLatency.record(System.nanoTime() - start);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Write all of buffer to every channel, servicing whichever
+	 * channels have room rather than waiting on each in turn.
+	 */
+	public void write(byte[] buffer) throws IOException {
+		write(buffer, buffer.length);
+	}
+
+	/**
+	 * Write the first length bytes of buffer to every channel.
+	 */
+	public void write(byte[] buffer, int length) throws IOException {
+		if (out == null || out.capacity() < length) {
+			DirectBufferPool.release(out);
+			out = DirectBufferPool.acquire(length);
+			for (State state : states) {
+				state.out = out.duplicate();
+			}
+		}
+		out.clear();
+		out.put(buffer, 0, length);
+
+		int pending = 0;
+		for (State state : states) {
+			state.out.limit(length).position(0);
+			state.channel.write(state.out);
+			if (state.out.hasRemaining()) {
+				state.channel.keyFor(writeSelector).interestOps(SelectionKey.OP_WRITE);
+				pending++;
+			}
+		}
+
+		while (pending > 0) {
+			writeSelector.select();
+			Iterator<SelectionKey> keys = writeSelector.selectedKeys().iterator();
+			while (keys.hasNext()) {
+				SelectionKey key = keys.next();
+				keys.remove();
+
+				State state = (State) key.attachment();
+				state.channel.write(state.out);
+				if (!state.out.hasRemaining()) {
+					key.interestOps(0);
+					pending--;
+				}
+			}
+		}
+	}
+
+	public void close() throws IOException {
+		readSelector.close();
+		writeSelector.close();
+		for (State state : states) {
+			state.channel.close();
+			DirectBufferPool.release(state.scratch);
+			state.scratch = null;
+		}
+		DirectBufferPool.release(out);
+		out = null;
+	}
+}
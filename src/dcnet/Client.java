@@ -1,29 +1,38 @@
 package dcnet;
 
-import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileReader;
-import java.io.FileWriter;
-import java.io.BufferedWriter;
 import java.io.IOException;
 import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.RandomAccessFile;
 import java.io.UnsupportedEncodingException;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
 import java.util.Arrays;
 import java.util.BitSet;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.Map;
 import java.util.Properties;
 import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
 
 import scheduler.BloomFilterScheduler;
 import scheduler.SlotUtils;
 
+import scheduler.control.LengthReservingControlSlot;
 import scheduler.control.PruningBinaryControlSlot;
 import scheduler.control.BinaryControlSlot;
 import scheduler.control.DummyControlSlot;
@@ -33,13 +42,60 @@ import services.BloomFilter;
 
 public class Client extends Base {
 	private static final String PROP_SLOT_PER_ELEMENT = "slot.slotsPerElement";
+	private static final String PROP_ELEMENTS_PER_ROUND = "client.elementsPerRound";
+	private static final String PROP_INPUT_MODE = "client.inputMode";
+	private static final String PROP_DIRECT_ELEMENTS = "client.directElements";
+	private static final String PROP_LOAD_THREADS = "client.loadThreads";
+	private static final String PROP_SCHEDULE_THREADS = "client.scheduleThreads";
+	private static final String PROP_OUTPUT = "client.output";
+	private static final String PROP_WRITE_SLOTS = "client.writeSlots";
+	private static final String PROP_INPUT_QUEUE = "client.inputQueueLength";
+	private static final String PROP_MAX_CARRIES = "client.maxCarries";
+
+	private static final long TAIL_POLL_MILLIS = 100;
 
 	private int id, numServers;
+	private ClientAssignment assignment;
 
-	private Socket serverSocket;
+	private Connection serverConnection;
+	private final DownstreamFrame downstream = new DownstreamFrame();
+
+	// Slots are encoded into a scratch array of their exact
+	// length (kept per length, for re-use), then laid out back to
+	// back in a pooled direct buffer to be sent from.
+	private byte[][] slotScratch;
+	private ByteBuffer sendBuffer;
+	private byte[] receiveBatch = new byte[0];
 
 	private SlotCipher cipher;
 	private BloomFilterScheduler scheduler;
+	// The last round's schedule, once it's done with, to be
+	// cleared and used again for the next one.
+	private BloomFilterScheduler spareSchedule;
+
+	// Elements waiting for a round: anything carried over from
+	// earlier rounds goes first, then whatever has arrived since.
+	// Arrivals wait for room in incoming, which is bounded; an
+	// element carried over more than maxCarries times is dropped.
+	private BlockingQueue<byte[]> incoming;
+	private Deque<byte[]> pending;
+	private Map<ByteBuffer, Integer> carries;
+	private int elementsPerRound;
+	private int maxCarries;
+	private long dropped;
+	private boolean directElements;
+	private int loadThreads;
+	private int scheduleThreads;
+
+	// What we sent and got back in each slot, written out in the
+	// background, if enabled.
+	private boolean outputEnabled;
+	private OutputSink output;
+
+	// Each round's schedule, written out the same way when it's
+	// closed, if enabled.
+	private boolean writeSlots;
+	private OutputSink slotsOutput;
 
 	private Logger logger;
 	private Random slotRandom;
@@ -51,22 +107,43 @@ public class Client extends Base {
 
 		this.id = id;
 		this.numServers = numServers;
+		this.assignment = new ClientAssignment(properties.getProperty(PROP_DCNET_WEIGHTS), numServers);
 		this.slotRandom = new Random();
 		this.logger = Logger.getGlobal();
 
-		this.cipher = new SlotCipher(getSecrets());
+		if (counterCipher) {
+			this.cipher = new CounterSlotCipher(getSecrets());
+		} else {
+			this.cipher = new SlotCipher(getSecrets());
+		}
 
 		slotsPerElement = Integer.valueOf(properties.getProperty(
 					PROP_SLOT_PER_ELEMENT, Integer.toString(Integer.MAX_VALUE)));
-		this.scheduler = new BloomFilterScheduler(estimatedElementsPerRound, fpr);
-
+		elementsPerRound = Integer.valueOf(properties.getProperty(
+					PROP_ELEMENTS_PER_ROUND, Integer.toString(estimatedElementsPerRound)));
+		directElements = Boolean.valueOf(properties.getProperty(PROP_DIRECT_ELEMENTS, "false"));
+		loadThreads = Integer.valueOf(properties.getProperty(PROP_LOAD_THREADS, "1"));
+		scheduleThreads = Integer.valueOf(properties.getProperty(PROP_SCHEDULE_THREADS, "1"));
+		outputEnabled = Boolean.valueOf(properties.getProperty(PROP_OUTPUT, "true"));
+		writeSlots = Boolean.valueOf(properties.getProperty(PROP_WRITE_SLOTS, "true"));
+		maxCarries = Integer.valueOf(properties.getProperty(PROP_MAX_CARRIES, "16"));
+
+		// Always room for a full round, so file input can be
+		// queued up front.
+		final int inputQueueLength = Integer.valueOf(properties.getProperty(PROP_INPUT_QUEUE, "65536"));
+		this.incoming = new LinkedBlockingQueue<byte[]>(Math.max(inputQueueLength, elementsPerRound));
+		this.pending = new ArrayDeque<byte[]>();
+		this.carries = new HashMap<ByteBuffer, Integer>();
 	}
 
-	private void initializeConnection() throws IOException {
+	public void initializeConnection() throws IOException {
 		String serverHost = (servers == null) ? "localhost" : servers[getServer()];
 		int serverPort = Server.CLIENT_PORT + getServer();
 		try {
-			serverSocket = new Socket(serverHost, serverPort);
+			serverConnection = transport.connect(serverHost, serverPort);
+
+			// Say who we are, since accept order doesn't.
+			new DataOutputStream(serverConnection.getOutputStream()).writeInt(id);
 		} catch (IOException e) {
 			logger.severe("Exception connecting to server.");
 			throw e;
@@ -92,115 +169,539 @@ public class Client extends Base {
 	 * @return the server id
 	 */
 	private int getServer() {
-		return id % numServers;
+		return assignment.getServer(id);
 	}
 
+	/**
+	 * Queue an element for publication in an upcoming round,
+	 * waiting for room if the queue is full. Safe to call from
+	 * any thread but the one running the rounds.
+	 */
+	public void put(byte[] element) throws InterruptedException {
+		incoming.put(element);
+	}
+
+	public void put(String element) throws InterruptedException {
+		try {
+			put(element.getBytes("ISO-8859-1"));
+		} catch (UnsupportedEncodingException e) {
+			// ISO-8859-1 is always supported.
+		}
+	}
+
+	/**
+	 * Queue each line of the file, split straight out of the
+	 * mapped file as bytes, on loadThreads threads. Whatever
+	 * doesn't fit in the queue now is fed in on a background
+	 * thread as room is made.
+	 */
 	public void readInputFromFile(String inputFile) throws IOException {
-		try (
-			FileReader fr = new FileReader(inputFile);
-			BufferedReader br = new BufferedReader(fr);
-		) {
-			String elem = null;
-			while ((elem = br.readLine()) != null) {
-				scheduler.add(elem);
+		final Iterator<byte[]> lines = LineLoader.load(inputFile, loadThreads).iterator();
+		while (lines.hasNext()) {
+			final byte[] line = lines.next();
+			if (!incoming.offer(line)) {
+				startFeeder(new Runnable() {
+					public void run() {
+						try {
+							put(line);
+							while (lines.hasNext()) {
+								put(lines.next());
+							}
+						} catch (InterruptedException e) {
+							// Shutting down.
+						}
+					}
+				});
+				return;
 			}
-		} catch (IOException e) {
-			throw e;
 		}
 	}
 
-	public void finalizeSchedule() {
-		scheduler.finalizeSchedule(slotsPerElement);
+	/**
+	 * Queue each line of the stream as it arrives, on a
+	 * background thread, until the end of the stream.
+	 */
+	public void readInput(final InputStream is) {
+		startFeeder(new Runnable() {
+			public void run() {
+				try {
+					final byte[] chunk = new byte[8192];
+					ByteArrayOutputStream line = new ByteArrayOutputStream();
+					int n;
+					while ((n = is.read(chunk)) >= 0) {
+						putLines(chunk, n, line);
+					}
+					if (line.size() > 0) {
+						put(line.toByteArray());
+					}
+				} catch (IOException e) {
+					logger.warning("Error reading input stream.");
+				} catch (InterruptedException e) {
+					// Shutting down.
+				}
+			}
+		});
+	}
+
+	/**
+	 * Queue each line of the file, including those appended
+	 * later on, on a background thread (like tail -f).
+	 */
+	public void tailInput(final String inputFile) {
+		startFeeder(new Runnable() {
+			public void run() {
+				try (RandomAccessFile raf = new RandomAccessFile(inputFile, "r")) {
+					final byte[] chunk = new byte[8192];
+					ByteArrayOutputStream line = new ByteArrayOutputStream();
+					while (true) {
+						int n = raf.read(chunk);
+						if (n < 0) {
+							Thread.sleep(TAIL_POLL_MILLIS);
+							continue;
+						}
+						putLines(chunk, n, line);
+					}
+				} catch (IOException e) {
+					logger.warning("Error tailing input file.");
+				} catch (InterruptedException e) {
+					// Shutting down.
+				}
+			}
+		});
 	}
 
-	public void startProtocolRound() throws IOException {
-		if (true) {
-			scheduler.writeSlotsToFile(String.format("run/slots/%d.csv", id));
+	/**
+	 * Queue each line ended in the first n bytes of chunk. Lines
+	 * may well be split across reads, so whatever's left after
+	 * the last line end stays in line for next time.
+	 */
+	private void putLines(byte[] chunk, int n, ByteArrayOutputStream line) throws InterruptedException {
+		for (int i = 0; i < n; i++) {
+			if (chunk[i] == '\n') {
+				put(line.toByteArray());
+				line.reset();
+			} else if (chunk[i] != '\r') {
+				line.write(chunk[i]);
+			}
 		}
+	}
 
-		ControlSlot controlSlot;
-	   	if (controlSlotType) {
-			controlSlot = new PruningBinaryControlSlot(scheduler, attemptsPerSlot);
+	private void startFeeder(Runnable feeder) {
+		Thread thread = new Thread(feeder, "input-feeder");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Close the schedule for the next round, from the elements
+	 * carried over and then those queued at this point.
+	 * @return the finalized schedule
+	 */
+	private BloomFilterScheduler closeSchedule() {
+		BloomFilterScheduler schedule = spareSchedule;
+		spareSchedule = null;
+		if (schedule == null) {
+			schedule = new BloomFilterScheduler(estimatedElementsPerRound, fpr, directElements);
+			schedule.setThreads(scheduleThreads);
 		} else {
-			controlSlot = new DummyControlSlot(scheduler, attemptsPerSlot);
+			schedule.clear();
+		}
+		for (int i = 0; i < elementsPerRound; i++) {
+			byte[] element = pending.poll();
+			if (element == null) {
+				element = incoming.poll();
+			}
+			if (element == null) {
+				break;
+			}
+			schedule.add(element);
+		}
+		schedule.finalizeSchedule(slotsPerElement);
+		return schedule;
+	}
+
+	/**
+	 * Put any of the round's elements that didn't make it out,
+	 * because of a collision or otherwise, back at the front of
+	 * the queue for the next schedule, unless they've already
+	 * been carried over maxCarries times.
+	 */
+	private void carryForward(BloomFilterScheduler schedule, byte[][] slotOutputs) {
+		Set<ByteBuffer> published = new HashSet<ByteBuffer>();
+		for (byte[] slot : slotOutputs) {
+			if (slot != null) {
+				final int length = SlotUtils.decode(slot).length;
+				published.add(ByteBuffer.wrap(slot, SlotUtils.METADATA_BYTES, length));
+			}
+		}
+
+		for (int i = schedule.getElementCount() - 1; i >= 0; i--) {
+			final byte[] element = schedule.getElement(i);
+			final ByteBuffer key = ByteBuffer.wrap(element);
+			if (published.contains(key)) {
+				carries.remove(key);
+				continue;
+			}
+			final Integer carried = carries.get(key);
+			final int count = (carried == null) ? 1 : carried + 1;
+			if (count > maxCarries) {
+				carries.remove(key);
+				dropped++;
+			} else {
+				carries.put(key, count);
+				pending.addFirst(element);
+			}
+		}
+	}
+
+	/**
+	 * Run rounds back to back over the existing connection,
+	 * or forever if rounds is less than one. Mirrors the
+	 * server: each round's control slot goes up before the
+	 * previous round's data slots, and its result comes back
+	 * down after them.
+	 * Each round's schedule is closed when its control slot
+	 * goes up, so elements that don't make it out of a round
+	 * are carried forward to the one after next.
+	 */
+	public void run(int rounds) throws IOException {
+		if (outputEnabled) {
+			new File("run/output").mkdirs();
+			output = new OutputSink(String.format("run/output/%d.csv", id), false, outputQueueLength);
+		}
+		if (writeSlots) {
+			new File("run/slots").mkdirs();
+			slotsOutput = new OutputSink(String.format("run/slots/%d.csv", id), false, outputQueueLength);
+		}
+		try {
+			runRounds(rounds);
+		} finally {
+			String fmt = "input: queued=%d, carried=%d, dropped=%d after %d carries";
+			logger.info(String.format(fmt, incoming.size(), pending.size(), dropped, maxCarries));
+
+			DirectBufferPool.release(sendBuffer);
+			sendBuffer = null;
+
+			final OutputSink slots = slotsOutput;
+			slotsOutput = null;
+			try {
+				closeOutput(slots, "slots");
+			} finally {
+				final OutputSink closing = output;
+				output = null;
+				closeOutput(closing, "output");
+			}
+		}
+	}
+
+	private void closeOutput(OutputSink sink, String name) throws IOException {
+		if (sink == null) {
+			return;
+		}
+		sink.close();
+
+		String fmt = "%s: lines=%d, max queue=%d/%d, stalls=%d (%d ms)";
+		logger.info(String.format(fmt, name, sink.getQueued(), sink.getMaxDepth(),
+					outputQueueLength, sink.getStalls(), sink.getStallNanos() / 1000000));
+	}
+
+	/**
+	 * Queue the given round's schedule for writing out, one line
+	 * per filled slot: the round, the slot and its element.
+	 */
+	private void writeSchedule(BloomFilterScheduler schedule, int round) throws IOException {
+		if (slotsOutput == null) {
+			return;
+		}
+		final byte[] roundField = digits(round, 1);
+		for (int i = 0; i < schedule.getSlotCount(); i++) {
+			if (!schedule.isEmpty(i)) {
+				slotsOutput.writeFields(roundField, digits(i, 4), schedule.getSlotElement(i));
+			}
 		}
+	}
+
+	/**
+	 * @return value in decimal, zero-padded to width, as ASCII
+	 */
+	private static byte[] digits(int value, int width) {
+		int length = 1;
+		for (int rest = value / 10; rest > 0; rest /= 10) {
+			length++;
+		}
+		final byte[] field = new byte[Math.max(length, width)];
+		for (int i = field.length - 1; i >= 0; i--, value /= 10) {
+			field[i] = (byte) ('0' + value % 10);
+		}
+		return field;
+	}
+
+	private void runRounds(int rounds) throws IOException {
+		scheduler = closeSchedule();
+		writeSchedule(scheduler, 0);
+
+		ControlSlot controlSlot = newControlSlot(scheduler);
+		sendControlSlot(controlSlot, 0);
+		receiveControlResult(controlSlot);
+
+		for (int round = 0; rounds < 1 || round < rounds; round++) {
+			BloomFilterScheduler nextSchedule = null;
+			ControlSlot nextSlot = null;
+			if (rounds < 1 || round + 1 < rounds) {
+				nextSchedule = closeSchedule();
+				writeSchedule(nextSchedule, round + 1);
+				nextSlot = newControlSlot(nextSchedule);
+				sendControlSlot(nextSlot, round + 1);
+			}
+
+			byte[][] slotOutputs = runDataSlots(round, controlSlot);
+			carryForward(scheduler, slotOutputs);
+			spareSchedule = scheduler;
+
+			if (nextSlot != null) {
+				receiveControlResult(nextSlot);
+			}
+			scheduler = nextSchedule;
+			controlSlot = nextSlot;
+		}
+	}
+
+	private ControlSlot newControlSlot(BloomFilterScheduler scheduler) {
+	   	if (controlSlotType && reserveLengths) {
+			return new LengthReservingControlSlot(scheduler, attemptsPerSlot, defaultSlotLength);
+		} else if (controlSlotType) {
+			return new PruningBinaryControlSlot(scheduler, attemptsPerSlot);
+		} else {
+			return new DummyControlSlot(scheduler, attemptsPerSlot);
+		}
+	}
+
+	private void sendControlSlot(ControlSlot controlSlot, int round) throws IOException {
 		final int controlSlotLength = controlSlot.getLength();
 		if (controlSlotLength > 0) {
 			// Run control slot as one big slot for now.
 			final byte[] slotBuffer = new byte[controlSlotLength];
 			controlSlot.getSlot(slotBuffer);
-			cipher.xorKeyStream(slotBuffer);
+			cipher.xorKeyStream(slotBuffer, round, SlotCipher.CONTROL_SLOT, 0);
 
 			// Run control slots up through the servers.
-			SocketUtils.write(slotBuffer, serverSocket);
-			SocketUtils.read(null, slotBuffer, serverSocket);
+			SocketUtils.write(slotBuffer, serverConnection);
+		}
+	}
+
+	private void receiveControlResult(ControlSlot controlSlot) throws IOException {
+		final int controlSlotLength = controlSlot.getLength();
+		if (controlSlotLength > 0) {
+			final byte[] slotBuffer = new byte[controlSlotLength];
+			SocketUtils.read(null, slotBuffer, serverConnection);
 
 			controlSlot.setResult(slotBuffer);
 		}
+	}
 
+	/**
+	 * Run the data slots of a round, as scheduled by its (now
+	 * complete) control slot, and record what came out of them.
+	 */
+	private byte[][] runDataSlots(int round, ControlSlot controlSlot) throws IOException {
 		final int slotCount = controlSlot.getSlotCount();
 		final int attempts = controlSlot.getAttempts();
 
-		// Record all the transmitted slots for output later.
+		// Record what made it out, to carry the rest forward.
 		byte[][] slotOutputs = new byte[slotCount][];
 
-		for (int i = 0; i < slotCount; i++) {
-			// Start off assuming slot is going to be empty.
-			boolean slotEmpty = true;
-
-			for (int j = 0; j < attempts; j++) {
-				final byte[] slotBuffer = new byte[defaultSlotLength];
-				controlSlot.getSlot(i, slotBuffer, false);
-				cipher.xorKeyStream(slotBuffer);
-
-				SocketUtils.write(slotBuffer, serverSocket);
-				if (true) {
-					SocketUtils.read(null, slotBuffer, serverSocket);
+		if (retrySubRounds > 0 || (batchSize > 1 && attempts == 1)) {
+			// Every slot goes out exactly once, so there's no need
+			// to wait on each result; send the round in batches.
+			final int[] slots = new int[slotCount];
+			for (int i = 0; i < slotCount; i++) {
+				slots[i] = i;
+			}
+			// Control slots that leave collisions to repeated attempts
+			// don't pick who goes in a slot; in one pass, everyone does.
+			final boolean everyone = attempts > 1;
+			final BitSet sent = new BitSet(slotCount);
+
+			int pending = runBatches(round, 0, controlSlot, slots, slotCount, everyone, sent, slotOutputs);
+			for (int subRound = 1; pending > 0 && subRound <= retrySubRounds; subRound++) {
+				pending = runBatches(round, subRound, controlSlot, slots, pending, everyone, sent, slotOutputs);
+			}
+			// Out of retries for whatever's left.
+			for (int k = 0; k < pending; k++) {
+				writeOutput(controlSlot, slots[k], null);
+			}
+		} else {
+			for (int i = 0; i < slotCount; i++) {
+				// Start off assuming slot is going to be empty.
+				boolean slotEmpty = true;
+				final int slotLength = getSlotLength(controlSlot, i);
+
+				for (int j = 0; j < attempts; j++) {
+					final byte[] slotBuffer = new byte[slotLength];
+					controlSlot.getSlot(i, slotBuffer, false);
+					cipher.xorKeyStream(slotBuffer, round, i, j);
+
+					SocketUtils.write(slotBuffer, serverConnection);
+					if (true) {
+						final byte status;
+						if (compactDownstream) {
+							downstream.read(serverConnection);
+							status = downstream.next(slotBuffer);
+						} else {
+							SocketUtils.read(null, slotBuffer, serverConnection);
+							status = getStatus(slotBuffer);
+						}
 
-					SlotUtils.SlotMetadata meta = SlotUtils.decode(slotBuffer);
-					if (!meta.isEmpty) {
-						if(meta.isValid && slotEmpty) {
-							slotOutputs[i] = slotBuffer;
+						if (status != DownstreamFrame.EMPTY) {
+							if(status == DownstreamFrame.VALID && slotEmpty) {
+								slotOutputs[i] = slotBuffer;
+							}
+							slotEmpty = false;
 						}
-						slotEmpty = false;
+					}
+					if (!slotEmpty) {
+						break;
 					}
 				}
-				if (!slotEmpty) {
-					break;
-				}
+				writeOutput(controlSlot, i, slotOutputs[i]);
 			}
 		}
+		return slotOutputs;
+	}
 
-		// Write the output of the round to a file for analysis.
-		if (true) {
-			String outputFile = String.format("run/output/%d.csv", id);
-			try (
-				FileWriter fw = new FileWriter(outputFile);
-				BufferedWriter bw = new BufferedWriter(fw);
-			) {
-				byte[] dataBuffer = new byte[defaultSlotLength];
-				for (int i = 0; i < slotCount; i++) {
-					if (!controlSlot.isEmpty(i)) {
-						controlSlot.getSlot(i, dataBuffer, true);
-						bw.write(SlotUtils.toString(dataBuffer));
-					} else {
-						bw.write("<>");
-					}
-					bw.write(": ");
+	/**
+	 * Queue a line for a slot whose outcome is known: what we
+	 * sent in it, if anything, and what came out, if valid.
+	 * Slots go in in the order they're settled, which puts any
+	 * that needed retries after the rest, as on the server.
+	 */
+	private void writeOutput(ControlSlot controlSlot, int i, byte[] received) throws IOException {
+		if (output == null) {
+			return;
+		}
+		byte[] sent = null;
+		if (!controlSlot.isEmpty(i)) {
+			sent = controlSlot.getSlot(i, new byte[defaultSlotLength], true);
+		}
+		output.write(sent, received);
+	}
 
-					byte[] slot = slotOutputs[i];
-					if (slot != null) {
-						bw.write(SlotUtils.toString(slot));
-					} else {
-						bw.write("<>");
+	/**
+	 * Run the first count of the given slots through in batches,
+	 * all as the same attempt, mirroring the server. On retries,
+	 * each client that sent something in a slot the first time
+	 * flips a fresh coin to decide whether to go again.
+	 * @return the number of slots that need another attempt, if
+	 * retrying, which are moved to the front of slots
+	 */
+	private int runBatches(int round, int attempt, ControlSlot controlSlot, int[] slots, int count,
+			boolean everyone, BitSet sent, byte[][] slotOutputs) throws IOException {
+		final boolean retrying = retrySubRounds > 0;
+		final int[] offsets = new int[batchSize + 1];
+
+		int pending = 0;
+		for (int start = 0; start < count; start += batchSize) {
+			final int batchCount = Math.min(batchSize, count - start);
+			for (int k = 0; k < batchCount; k++) {
+				final int slotLength = (attempt == 0)
+					? getSlotLength(controlSlot, slots[start + k]) : defaultSlotLength;
+				offsets[k + 1] = offsets[k] + slotLength;
+			}
+			final int length = offsets[batchCount];
+			if (sendBuffer == null || sendBuffer.capacity() < length) {
+				DirectBufferPool.release(sendBuffer);
+				sendBuffer = DirectBufferPool.acquire(length);
+			}
+			sendBuffer.clear();
+
+			for (int k = 0; k < batchCount; k++) {
+				final int i = slots[start + k];
+				final byte[] slotBuffer = getSlotScratch(offsets[k + 1] - offsets[k]);
+				if (attempt == 0) {
+					controlSlot.getSlot(i, slotBuffer, everyone);
+					if (retrying && !SlotUtils.decode(slotBuffer).isEmpty) {
+						sent.set(i);
 					}
-					bw.newLine();
+				} else if (sent.get(i) && slotRandom.nextBoolean()) {
+					controlSlot.getSlot(i, slotBuffer, true);
+				}
+				cipher.xorKeyStream(slotBuffer, round, i, attempt);
+				sendBuffer.put(slotBuffer);
+			}
+
+			// Send the whole batch straight out of the direct buffer.
+			sendBuffer.flip();
+			SocketUtils.write(sendBuffer, serverConnection);
+			if (compactDownstream) {
+				downstream.read(serverConnection);
+			} else {
+				if (receiveBatch.length < length) {
+					receiveBatch = new byte[length];
+				}
+				SocketUtils.read(null, length, receiveBatch, serverConnection);
+			}
+
+			for (int k = 0; k < batchCount; k++) {
+				final int i = slots[start + k];
+				final byte[] slot;
+				final byte status;
+				if (compactDownstream) {
+					slot = new byte[offsets[k + 1] - offsets[k]];
+					status = downstream.next(slot);
+				} else {
+					slot = Arrays.copyOfRange(receiveBatch, offsets[k], offsets[k + 1]);
+					status = getStatus(slot);
+				}
+
+				if (status == DownstreamFrame.VALID) {
+					slotOutputs[i] = slot;
+					writeOutput(controlSlot, i, slot);
+				} else if (retrying && (attempt > 0 || status == DownstreamFrame.COLLISION)) {
+					slots[pending++] = i;
+				} else {
+					writeOutput(controlSlot, i, null);
 				}
-			} catch (IOException e) {
-				logger.warning("Error writing output to file.");
-				throw e;
 			}
 		}
+		return pending;
+	}
+
+	/**
+	 * @return a zeroed array of exactly length bytes, to encode a
+	 * slot into before sending it; only good until the next call
+	 */
+	private byte[] getSlotScratch(int length) {
+		if (slotScratch == null || slotScratch.length <= length) {
+			slotScratch = Arrays.copyOf((slotScratch == null) ? new byte[0][] : slotScratch,
+					Math.max(length, defaultSlotLength) + 1);
+		}
+		byte[] scratch = slotScratch[length];
+		if (scratch == null) {
+			scratch = slotScratch[length] = new byte[length];
+		} else {
+			Arrays.fill(scratch, (byte) 0);
+		}
+		return scratch;
+	}
+
+	/**
+	 * @return what the server would have made of slot, had it
+	 * sent a DownstreamFrame rather than the slot itself
+	 */
+	private static byte getStatus(byte[] slot) {
+		final SlotUtils.SlotMetadata meta = SlotUtils.decode(slot);
+		if (meta.isValid) {
+			return DownstreamFrame.VALID;
+		}
+		return meta.isEmpty ? DownstreamFrame.EMPTY : DownstreamFrame.COLLISION;
+	}
+
+	/**
+	 * @return the number of bytes sent for the index-th slot
+	 */
+	private int getSlotLength(ControlSlot controlSlot, int index) {
+		final int reserved = controlSlot.getReservedLength(index);
+		return (reserved > 0) ? reserved : defaultSlotLength;
 	}
 
 	public static void main(String[] args) {
@@ -222,11 +723,17 @@ public class Client extends Base {
 		Client client = new Client(properties, id, servers);
 		try {
 			String inputFile = String.format("run/input/%d.csv", id);
-			client.readInputFromFile(inputFile);
-			client.finalizeSchedule();
+			String inputMode = properties.getProperty(PROP_INPUT_MODE, "file");
+			if ("tail".equals(inputMode)) {
+				client.tailInput(inputFile);
+			} else if ("stdin".equals(inputMode)) {
+				client.readInput(System.in);
+			} else {
+				client.readInputFromFile(inputFile);
+			}
 
 			client.initializeConnection();
-			client.startProtocolRound();
+			client.run(client.rounds);
 		} catch (IOException e) {
 			e.printStackTrace();
 			System.exit(1);
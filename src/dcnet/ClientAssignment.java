@@ -0,0 +1,104 @@
+package dcnet;
+
+import java.util.Arrays;
+
+/**
+ * Which server each client connects to, spreading the clients
+ * over the servers in proportion to their weights, so a faster
+ * server can be given more of them. Clients are dealt out in id
+ * order by smooth weighted round robin, which, with all weights
+ * equal, is the same as id % numServers. It depends only on the
+ * weights, so every client and server works out the same thing
+ * for itself, with nothing to coordinate. The weights are set
+ * by hand for a run, say in proportion to the capacity each
+ * server logs at the end of the last; nothing is measured or
+ * rebalanced while one is going.
+ */
+public class ClientAssignment {
+	private final long[] weights;
+	private final long total;
+
+	/**
+	 * @param weights a positive integer weight per server,
+	 * comma-separated, or null to weight them all equally
+	 */
+	public ClientAssignment(String weights, int numServers) {
+		this.weights = new long[numServers];
+		if (weights == null || weights.trim().isEmpty()) {
+			Arrays.fill(this.weights, 1);
+		} else {
+			String[] parts = weights.split(",");
+			if (parts.length != numServers) {
+				throw new IllegalArgumentException(String.format(
+							"%d server weights given for %d servers", parts.length, numServers));
+			}
+			for (int i = 0; i < numServers; i++) {
+				this.weights[i] = Long.valueOf(parts[i].trim());
+				if (this.weights[i] <= 0) {
+					throw new IllegalArgumentException("server weights must be positive");
+				}
+			}
+		}
+		long total = 0;
+		for (long weight : this.weights) {
+			total += weight;
+		}
+		this.total = total;
+	}
+
+	/**
+	 * @return the server the given client connects to
+	 */
+	public int getServer(int client) {
+		// The deal repeats every total clients.
+		final long[] current = new long[weights.length];
+		int server = 0;
+		for (long i = 0; i <= client % total; i++) {
+			server = next(current);
+		}
+		return server;
+	}
+
+	/**
+	 * @return how many of clients 0 to numClients - 1 connect
+	 * to the given server
+	 */
+	public int getClientCount(int server, int numClients) {
+		final long[] current = new long[weights.length];
+		final long period = Math.min(total, numClients);
+		int perPeriod = 0, remainder = 0;
+		for (long i = 0; i < period; i++) {
+			if (next(current) == server) {
+				perPeriod++;
+				if (i < numClients % total) {
+					remainder++;
+				}
+			}
+		}
+		return (int) (numClients / total) * perPeriod + remainder;
+	}
+
+	/**
+	 * @return the share of the clients the given server gets
+	 */
+	public double getShare(int server) {
+		return weights[server] / (double) total;
+	}
+
+	/**
+	 * Deal the next client: every server's credit goes up by its
+	 * weight, and the one with the most (the lowest id, on a tie)
+	 * gets the client and pays back the total.
+	 */
+	private int next(long[] current) {
+		int best = 0;
+		for (int i = 0; i < weights.length; i++) {
+			current[i] += weights[i];
+			if (current[i] > current[best]) {
+				best = i;
+			}
+		}
+		current[best] -= total;
+		return best;
+	}
+}
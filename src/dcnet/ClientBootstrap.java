@@ -0,0 +1,340 @@
+package dcnet;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.logging.Logger;
+
+/**
+ * Brings a server's clients in: one thread accepts connections
+ * as fast as they come, and another reads every one's id at
+ * once through a Selector, so a slow or silent client holds up
+ * nobody else; it's just dropped once its time is up. Clients
+ * are known by the id they send, not by when they arrive; one
+ * that connects again replaces its old connection, and one
+ * assigned to another server is turned away.
+ */
+public class ClientBootstrap {
+	// How often to look for handshakes that have timed out.
+	private static final long SWEEP_MILLIS = 100;
+
+	/**
+	 * A handshake under way: the id read so far, and when to
+	 * give up on it.
+	 */
+	private static class Handshake {
+		public final Connection connection;
+		public final SocketChannel channel;
+		public final ByteBuffer id = ByteBuffer.allocate(4);
+		public final long expires;
+
+		public Handshake(Connection connection, SocketChannel channel, long expires) {
+			this.connection = connection;
+			this.channel = channel;
+			this.expires = expires;
+		}
+	}
+
+	private final Transport.Listener listener;
+	private final int numClients;
+	private final ClientAssignment assignment;
+	private final int server;
+	private final int handshakeTimeout;
+
+	private final Selector selector;
+	private final Queue<Handshake> accepted = new ConcurrentLinkedQueue<Handshake>();
+	private final Thread acceptor;
+	private final Thread handshaker;
+	private final Logger logger = Logger.getGlobal();
+
+	// Clients that have said who they are, by id.
+	private final Map<Integer, Connection> clients = new TreeMap<Integer, Connection>();
+	private volatile boolean closed;
+
+	/**
+	 * @param numClients ids run from 0 to numClients - 1
+	 * @param assignment which clients belong to which server
+	 * @param server the server bringing its clients in
+	 * @param handshakeTimeout how long to wait for an id, in
+	 * milliseconds, or 0 to wait forever
+	 */
+	public ClientBootstrap(Transport.Listener listener, int numClients,
+			ClientAssignment assignment, int server, int handshakeTimeout) throws IOException {
+		this.listener = listener;
+		this.numClients = numClients;
+		this.assignment = assignment;
+		this.server = server;
+		this.handshakeTimeout = handshakeTimeout;
+
+		this.selector = Selector.open();
+		this.acceptor = new Thread(new Runnable() {
+			public void run() {
+				acceptAll();
+			}
+		}, "client-acceptor");
+		acceptor.setDaemon(true);
+		this.handshaker = new Thread(new Runnable() {
+			public void run() {
+				handshakeAll();
+			}
+		}, "client-handshake");
+		handshaker.setDaemon(true);
+	}
+
+	public void start() {
+		acceptor.start();
+		handshaker.start();
+	}
+
+	/**
+	 * Wait until expected clients are in, or, once deadline (in
+	 * System.currentTimeMillis terms, 0 for none) has passed,
+	 * until at least quorum are. Then stop taking clients.
+	 * @return the clients' connections, by id
+	 */
+	public TreeMap<Integer, Connection> await(int expected, int quorum, long deadline) throws IOException {
+		int reported = 0;
+		synchronized (clients) {
+			try {
+				while (true) {
+					final int count = clients.size();
+					if (count >= expected) {
+						break;
+					}
+					final long now = System.currentTimeMillis();
+					if (deadline > 0 && now >= deadline && count >= quorum) {
+						String fmt = "Deadline passed with %d/%d clients; starting.";
+						logger.warning(String.format(fmt, count, expected));
+						break;
+					}
+					if (count / 100 > reported / 100) {
+						String fmt = "%d/%d clients connected.";
+						logger.info(String.format(fmt, count, expected));
+						reported = count;
+					}
+					clients.wait((deadline > now) ? deadline - now : 0);
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("interrupted waiting for clients");
+			} finally {
+				closed = true;
+			}
+		}
+		stop();
+		synchronized (clients) {
+			return new TreeMap<Integer, Connection>(clients);
+		}
+	}
+
+	/**
+	 * Stop accepting; anyone still mid-handshake is turned away.
+	 */
+	private void stop() throws IOException {
+		listener.close();
+		acceptor.interrupt();
+		selector.wakeup();
+		try {
+			handshaker.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("interrupted stopping handshakes");
+		}
+	}
+
+	private void acceptAll() {
+		while (true) {
+			final Connection connection;
+			try {
+				connection = listener.accept();
+			} catch (IOException e) {
+				if (!closed) {
+					logger.severe("Exception accepting client connection.");
+				}
+				return;
+			}
+			final long expires = (handshakeTimeout > 0)
+				? System.currentTimeMillis() + handshakeTimeout : Long.MAX_VALUE;
+			final SocketChannel channel = (connection instanceof TcpTransport.TcpConnection)
+				? ((TcpTransport.TcpConnection) connection).getChannel() : null;
+			if (channel == null) {
+				// In-process connections can't be selected on,
+				// but aren't strangers either; give each a thread.
+				Thread thread = new Thread(new Runnable() {
+					public void run() {
+						handshakeBlocking(connection);
+					}
+				}, "client-handshake");
+				thread.setDaemon(true);
+				thread.start();
+				continue;
+			}
+			accepted.add(new Handshake(connection, channel, expires));
+			selector.wakeup();
+		}
+	}
+
+	/**
+	 * Read ids from every connection as their bytes arrive,
+	 * dropping those that time out, until stopped.
+	 */
+	private void handshakeAll() {
+		final List<Handshake> finished = new ArrayList<Handshake>();
+		long nextSweep = 0;
+		try {
+			while (!closed) {
+				selector.select(SWEEP_MILLIS);
+
+				for (Handshake handshake; (handshake = accepted.poll()) != null; ) {
+					try {
+						handshake.channel.configureBlocking(false);
+						handshake.channel.register(selector, SelectionKey.OP_READ, handshake);
+					} catch (IOException e) {
+						closeQuietly(handshake.connection);
+					}
+				}
+
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+
+					Handshake handshake = (Handshake) key.attachment();
+					try {
+						if (handshake.channel.read(handshake.id) < 0) {
+							throw new EOFException();
+						}
+					} catch (IOException e) {
+						logger.warning("Client went away before saying who it was.");
+						key.cancel();
+						closeQuietly(handshake.connection);
+						continue;
+					}
+					if (!handshake.id.hasRemaining()) {
+						key.cancel();
+						finished.add(handshake);
+					}
+				}
+
+				final long now = System.currentTimeMillis();
+				if (now >= nextSweep) {
+					for (SelectionKey key : selector.keys()) {
+						Handshake handshake = (Handshake) key.attachment();
+						if (key.isValid() && handshake.expires <= now) {
+							logger.warning("Client took too long to say who it was.");
+							key.cancel();
+							closeQuietly(handshake.connection);
+						}
+					}
+					nextSweep = now + SWEEP_MILLIS;
+				}
+
+				if (!finished.isEmpty()) {
+					// Deregister the cancelled keys, so the channels
+					// can go back to blocking for the rounds.
+					selector.selectNow();
+					for (Handshake handshake : finished) {
+						try {
+							handshake.channel.configureBlocking(true);
+						} catch (IOException e) {
+							closeQuietly(handshake.connection);
+							continue;
+						}
+						admit(handshake.connection, handshake.id.getInt(0));
+					}
+					finished.clear();
+				}
+			}
+		} catch (IOException e) {
+			logger.severe("Exception handshaking with clients.");
+		} finally {
+			int dropped = 0;
+			for (SelectionKey key : selector.keys()) {
+				if (key.isValid()) {
+					closeQuietly(((Handshake) key.attachment()).connection);
+					dropped++;
+				}
+			}
+			for (Handshake handshake; (handshake = accepted.poll()) != null; ) {
+				closeQuietly(handshake.connection);
+				dropped++;
+			}
+			if (dropped > 0) {
+				String fmt = "Dropping %d clients still to handshake.";
+				logger.warning(String.format(fmt, dropped));
+			}
+			try {
+				selector.close();
+			} catch (IOException e) {
+				// Nothing more to do with it anyway.
+			}
+		}
+	}
+
+	/**
+	 * Read the id of a connection that can't be selected on.
+	 */
+	private void handshakeBlocking(Connection connection) {
+		final int client;
+		try {
+			client = new DataInputStream(connection.getInputStream()).readInt();
+		} catch (IOException e) {
+			logger.warning("Client went away before saying who it was.");
+			closeQuietly(connection);
+			return;
+		}
+		admit(connection, client);
+	}
+
+	/**
+	 * Take in a client that has said who it is, if it's one of
+	 * ours and we're still taking clients.
+	 */
+	private void admit(Connection connection, int client) {
+		if (client < 0 || client >= numClients) {
+			logger.warning(String.format("Unexpected client id %d.", client));
+			closeQuietly(connection);
+			return;
+		}
+		if (assignment.getServer(client) != server) {
+			String fmt = "Client %d belongs to server %d, not us.";
+			logger.warning(String.format(fmt, client, assignment.getServer(client)));
+			closeQuietly(connection);
+			return;
+		}
+
+		Connection replaced;
+		synchronized (clients) {
+			if (closed) {
+				closeQuietly(connection);
+				return;
+			}
+			replaced = clients.put(client, connection);
+			clients.notifyAll();
+		}
+		if (replaced != null) {
+			logger.warning(String.format("Client %d reconnected.", client));
+			closeQuietly(replaced);
+		}
+	}
+
+	private static void closeQuietly(Connection connection) {
+		try {
+			connection.close();
+		} catch (IOException e) {
+			// Nothing more to do with it anyway.
+		}
+	}
+}
@@ -0,0 +1,16 @@
+package dcnet;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * A two-way byte stream between two participants, whatever
+ * the transport underneath it.
+ */
+public interface Connection {
+	public InputStream getInputStream() throws IOException;
+	public OutputStream getOutputStream() throws IOException;
+
+	public void close() throws IOException;
+}
@@ -0,0 +1,87 @@
+package dcnet;
+
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import javax.crypto.Cipher;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * A seekable keystream: AES in counter mode, where the counter
+ * block is the (round, slot, attempt, block) address of the
+ * 16 bytes of pad it produces. Unlike XORCipher, the pad for
+ * any part of any slot can be computed independently of the
+ * rest, in whatever order (and on whatever thread) is handy.
+ * Instances are not thread-safe, though.
+ */
+public class CounterCipher {
+	private static final int BLOCK_BYTES = 16;
+	private static final int BATCH_BLOCKS = 64;
+
+	private Cipher aes;
+
+	// Scratch space for a batch of counter blocks and their pad.
+	private byte[] counters;
+	private byte[] pad;
+	private ByteBuffer counterWrapper;
+
+	public CounterCipher(long key) {
+		try {
+			aes = Cipher.getInstance("AES/ECB/NoPadding");
+			aes.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(deriveKey(key), "AES"));
+		} catch (GeneralSecurityException e) {
+			// AES is required of every Java platform.
+			throw new IllegalStateException("AES unavailable", e);
+		}
+		counters = new byte[BATCH_BLOCKS * BLOCK_BYTES];
+		pad = new byte[counters.length];
+		counterWrapper = ByteBuffer.wrap(counters);
+	}
+
+	/**
+	 * Derive a 128-bit AES key from a (64-bit) shared secret.
+	 */
+	private static byte[] deriveKey(long key) throws GeneralSecurityException {
+		MessageDigest sha = MessageDigest.getInstance("SHA-256");
+		byte[] digest = sha.digest(ByteBuffer.allocate(8).putLong(key).array());
+		byte[] aesKey = new byte[BLOCK_BYTES];
+		System.arraycopy(digest, 0, aesKey, 0, aesKey.length);
+		return aesKey;
+	}
+
+	/**
+	 * XOR length bytes of the pad for the given round, slot and
+	 * attempt, starting offset bytes into the slot, into message.
+	 */
+	public void xorKeyStream(int round, int slot, int attempt, int offset,
+			byte[] message, int messageOffset, int length) {
+		int block = offset / BLOCK_BYTES;
+		int skip = offset % BLOCK_BYTES;
+
+		while (length > 0) {
+			final int blocks = Math.min(BATCH_BLOCKS,
+					(skip + length + BLOCK_BYTES - 1) / BLOCK_BYTES);
+			for (int i = 0; i < blocks; i++) {
+				final int base = i * BLOCK_BYTES;
+				counterWrapper.putInt(base, round);
+				counterWrapper.putInt(base + 4, slot);
+				counterWrapper.putInt(base + 8, attempt);
+				counterWrapper.putInt(base + 12, block + i);
+			}
+			try {
+				aes.doFinal(counters, 0, blocks * BLOCK_BYTES, pad, 0);
+			} catch (GeneralSecurityException e) {
+				// Can't happen: whole blocks, no padding, buffers sized.
+				throw new IllegalStateException(e);
+			}
+
+			final int n = Math.min(length, blocks * BLOCK_BYTES - skip);
+			XORCipher.xorBytes(pad, skip, message, messageOffset, n);
+
+			block += blocks;
+			skip = 0;
+			messageOffset += n;
+			length -= n;
+		}
+	}
+}
@@ -0,0 +1,74 @@
+package dcnet;
+
+/**
+ * A SlotCipher built on seekable CounterCipher keystreams, so
+ * the pad for any slot and attempt can be computed on its own.
+ * With more than one thread the secrets are split over them as
+ * they're asked for; since the keystreams seek, nothing has to
+ * be computed ahead.
+ */
+public class CounterSlotCipher extends SlotCipher {
+	/**
+	 * Slot index used for pads requested without an address,
+	 * which are taken as one continuous stream.
+	 */
+	private static final int STREAM_SLOT = -2;
+
+	private CounterCipher[] counters;
+	private int position;
+
+	private final RangeSplit split;
+
+	// The address of the pad being computed, for every range.
+	private int round, slot, attempt, start;
+	private final RangeXor counterRanges = new RangeXor() {
+		public void xorRange(int from, int to, byte[] message, int offset, int length) {
+			for (int i = from; i < to; i++) {
+				counters[i].xorKeyStream(round, slot, attempt, start, message, offset, length);
+			}
+		}
+	};
+
+	public CounterSlotCipher(long[] secrets) {
+		this(secrets, 1);
+	}
+
+	/**
+	 * @param threads how many threads, the caller's included, to
+	 * split the secrets over
+	 */
+	public CounterSlotCipher(long[] secrets, int threads) {
+		counters = new CounterCipher[secrets.length];
+		for (int i = 0; i < counters.length; i++) {
+			counters[i] = new CounterCipher(secrets[i]);
+		}
+		split = new RangeSplit(counters.length, threads, MIN_PARALLEL_BYTES, "pad-worker");
+	}
+
+	@Override
+	public void close() {
+		split.close();
+	}
+
+	@Override
+	public byte[] xorKeyStream(byte[] message, int offset, int length) {
+		xorPad(0, STREAM_SLOT, 0, position, message, offset, length);
+		position += length;
+		return message;
+	}
+
+	@Override
+	public byte[] xorKeyStream(byte[] message, int offset, int length, int round, int slot, int attempt) {
+		xorPad(round, slot, attempt, 0, message, offset, length);
+		return message;
+	}
+
+	private void xorPad(int round, int slot, int attempt, int start,
+			byte[] message, int offset, int length) {
+		this.round = round;
+		this.slot = slot;
+		this.attempt = attempt;
+		this.start = start;
+		split.xor(counterRanges, message, offset, length);
+	}
+}
@@ -0,0 +1,69 @@
+package dcnet;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Direct buffers for socket I/O, handed out by power-of-two size
+ * and taken back for re-use, since direct buffers are slow to
+ * allocate and only freed with the garbage collector's help.
+ * Channels read into and write from direct buffers without the
+ * extra copy through a temporary one that heap buffers cost.
+ * Safe to use from several threads.
+ */
+public class DirectBufferPool {
+	private static final int MIN_SHIFT = 10;
+	private static final int MAX_SHIFT = 30;
+
+	// Keep no more than this many idle buffers of each size.
+	private static final int MAX_IDLE = 16;
+
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	private static final ConcurrentLinkedQueue<ByteBuffer>[] idle =
+		new ConcurrentLinkedQueue[MAX_SHIFT + 1];
+
+	static {
+		for (int i = MIN_SHIFT; i <= MAX_SHIFT; i++) {
+			idle[i] = new ConcurrentLinkedQueue<ByteBuffer>();
+		}
+	}
+
+	private DirectBufferPool() { }
+
+	/**
+	 * @return a cleared buffer of at least capacity bytes, in
+	 * native byte order, limited to capacity
+	 */
+	public static ByteBuffer acquire(int capacity) {
+		final int shift = shift(capacity);
+		ByteBuffer buffer = idle[shift].poll();
+		if (buffer == null) {
+			buffer = ByteBuffer.allocateDirect(1 << shift).order(ByteOrder.nativeOrder());
+		}
+		buffer.clear().limit(capacity);
+		return buffer;
+	}
+
+	/**
+	 * Give back a buffer from acquire(); it mustn't be used again.
+	 */
+	public static void release(ByteBuffer buffer) {
+		if (buffer == null || !buffer.isDirect()) {
+			return;
+		}
+		final int shift = shift(buffer.capacity());
+		final ConcurrentLinkedQueue<ByteBuffer> queue = idle[shift];
+		if (buffer.capacity() == 1 << shift && queue.size() < MAX_IDLE) {
+			queue.offer(buffer);
+		}
+	}
+
+	private static int shift(int capacity) {
+		if (capacity > 1 << MAX_SHIFT) {
+			throw new IllegalArgumentException("buffer too large to pool: " + capacity);
+		}
+		final int shift = 32 - Integer.numberOfLeadingZeros(Math.max(1, capacity) - 1);
+		return Math.max(MIN_SHIFT, shift);
+	}
+}
@@ -0,0 +1,123 @@
+package dcnet;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import scheduler.SlotUtils;
+
+/**
+ * What the server sends back down to its clients after each
+ * batch (or slot) instead of the whole plaintext: a one-byte
+ * status per slot, followed, for valid slots only, by the
+ * slot's metadata and data, trimmed to the data's length.
+ * Empty and collided slots are all the clients need to know
+ * about them. On the wire a frame is an int giving the length
+ * of the rest, then the slots' entries in order.
+ * The same frame object is re-used from batch to batch.
+ */
+public class DownstreamFrame {
+	public static final byte EMPTY = 0;
+	public static final byte COLLISION = 1;
+	public static final byte VALID = 2;
+
+	private static final int LENGTH_BYTES = 4;
+
+	private byte[] buffer = new byte[256];
+	private int length;
+
+	// Where the next entry is read from.
+	private int position;
+
+	/**
+	 * Start a new frame to send.
+	 */
+	public void reset() {
+		length = LENGTH_BYTES;
+	}
+
+	/**
+	 * Add the slot occupying slotLength bytes of slots from
+	 * offset on, as decoded into meta.
+	 */
+	public void add(byte[] slots, int offset, int slotLength, SlotUtils.SlotMetadata meta) {
+		if (meta.isValid) {
+			final int trimmed = SlotUtils.METADATA_BYTES
+				+ Math.max(0, Math.min(meta.length, slotLength - SlotUtils.METADATA_BYTES));
+			ensureCapacity(1 + trimmed);
+			buffer[length++] = VALID;
+			System.arraycopy(slots, offset, buffer, length, trimmed);
+			length += trimmed;
+		} else {
+			ensureCapacity(1);
+			buffer[length++] = meta.isEmpty ? EMPTY : COLLISION;
+		}
+	}
+
+	/**
+	 * @return the frame to send, length prefix and all
+	 */
+	public byte[] getBuffer() {
+		final int body = length - LENGTH_BYTES;
+		buffer[0] = (byte) (body >>> 24);
+		buffer[1] = (byte) (body >>> 16);
+		buffer[2] = (byte) (body >>> 8);
+		buffer[3] = (byte) body;
+		return buffer;
+	}
+
+	/**
+	 * @return the number of bytes of getBuffer() to send
+	 */
+	public int getLength() {
+		return length;
+	}
+
+	/**
+	 * Read the next frame from connection.
+	 */
+	public void read(Connection connection) throws IOException {
+		SocketUtils.read(null, LENGTH_BYTES, buffer, connection);
+		final int body = ((buffer[0] & 0xff) << 24) | ((buffer[1] & 0xff) << 16)
+			| ((buffer[2] & 0xff) << 8) | (buffer[3] & 0xff);
+		if (body < 0) {
+			throw new IOException("bad downstream frame length " + body);
+		}
+		length = 0;
+		ensureCapacity(body);
+		SocketUtils.read(null, body, buffer, connection);
+		length = body;
+		position = 0;
+	}
+
+	/**
+	 * Take the next slot's entry out of the frame read, filling
+	 * in slot (from the start, zero-padded to its length) if
+	 * it's valid.
+	 * @return the slot's status
+	 */
+	public byte next(byte[] slot) throws IOException {
+		if (position >= length) {
+			throw new IOException("downstream frame too short");
+		}
+		final byte status = buffer[position++];
+		if (status != VALID) {
+			return status;
+		}
+
+		final int dataLength = SlotUtils.getLength(buffer, position);
+		final int trimmed = SlotUtils.METADATA_BYTES + dataLength;
+		if (dataLength < 0 || trimmed > slot.length || position + trimmed > length) {
+			throw new IOException("bad downstream slot length " + dataLength);
+		}
+		System.arraycopy(buffer, position, slot, 0, trimmed);
+		Arrays.fill(slot, trimmed, slot.length, (byte) 0);
+		position += trimmed;
+		return status;
+	}
+
+	private void ensureCapacity(int more) {
+		if (buffer.length - length < more) {
+			buffer = Arrays.copyOf(buffer, Math.max(length + more, 2 * buffer.length));
+		}
+	}
+}
@@ -0,0 +1,124 @@
+package dcnet;
+
+import java.util.Arrays;
+
+/**
+ * A fixed-size log-linear histogram of non-negative values:
+ * exact below 16, and within 1/8th (one of eight sub-buckets
+ * per power of two) above that. Recording doesn't allocate,
+ * so it's cheap enough to do on every slot. Not thread-safe.
+ */
+public class Histogram {
+	private static final int LINEAR = 16;
+	private static final int SUB_BUCKETS = 8;
+	private static final int BUCKETS = LINEAR + (64 - 4) * SUB_BUCKETS;
+
+	private final String name;
+	private final String unit;
+	private final long[] counts = new long[BUCKETS];
+
+	private long count, sum;
+	private long min = Long.MAX_VALUE, max;
+
+	public Histogram(String name, String unit) {
+		this.name = name;
+		this.unit = unit;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public String getUnit() {
+		return unit;
+	}
+
+	public void record(long value) {
+		if (value < 0) {
+			value = 0;
+		}
+		counts[bucket(value)]++;
+		count++;
+		sum += value;
+		min = Math.min(min, value);
+		max = Math.max(max, value);
+	}
+
+	/**
+	 * Fold everything recorded in other into this one.
+	 */
+	public void add(Histogram other) {
+		for (int i = 0; i < BUCKETS; i++) {
+			counts[i] += other.counts[i];
+		}
+		count += other.count;
+		sum += other.sum;
+		min = Math.min(min, other.min);
+		max = Math.max(max, other.max);
+	}
+
+	public void reset() {
+		Arrays.fill(counts, 0);
+		count = sum = max = 0;
+		min = Long.MAX_VALUE;
+	}
+
+	public long getCount() {
+		return count;
+	}
+
+	public long getSum() {
+		return sum;
+	}
+
+	public long getMin() {
+		return (count == 0) ? 0 : min;
+	}
+
+	public long getMax() {
+		return max;
+	}
+
+	public double getMean() {
+		return (count == 0) ? 0 : sum / (double) count;
+	}
+
+	/**
+	 * @param fraction e.g. 0.99 for the 99th percentile
+	 * @return an upper bound on the given percentile, no larger
+	 * than the largest value recorded
+	 */
+	public long getPercentile(double fraction) {
+		if (count == 0) {
+			return 0;
+		}
+		final long rank = Math.max(1, (long) Math.ceil(fraction * count));
+		long seen = 0;
+		for (int i = 0; i < counts.length; i++) {
+			seen += counts[i];
+			if (seen >= rank) {
+				return Math.min(upperBound(i), max);
+			}
+		}
+		return max;
+	}
+
+	private static int bucket(long value) {
+		if (value < LINEAR) {
+			return (int) value;
+		}
+		final int exponent = 63 - Long.numberOfLeadingZeros(value);
+		final int sub = (int) (value >>> (exponent - 3)) & (SUB_BUCKETS - 1);
+		return LINEAR + (exponent - 4) * SUB_BUCKETS + sub;
+	}
+
+	private static long upperBound(int bucket) {
+		if (bucket < LINEAR) {
+			return bucket;
+		}
+		final int exponent = (bucket - LINEAR) / SUB_BUCKETS + 4;
+		final int sub = (bucket - LINEAR) % SUB_BUCKETS;
+		final long width = 1L << (exponent - 3);
+		return (1L << exponent) + (sub + 1) * width - 1;
+	}
+}
@@ -0,0 +1,182 @@
+package dcnet;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Splits a file into its lines as raw bytes, without ever
+ * decoding them into Strings. The file is memory-mapped a chunk
+ * at a time, with chunks cut at line boundaries so that they
+ * can be split on several threads at once; the lines still come
+ * out in file order. Lines end at "\n" or "\r\n".
+ */
+public class LineLoader {
+	private static final int CHUNK_BYTES = 16 << 20;
+	private static final int SCAN_BYTES = 4096;
+
+	private LineLoader() { }
+
+	/**
+	 * @param threads how many chunks to split at once
+	 * @return the lines of the file, in order
+	 */
+	public static List<byte[]> load(String file, int threads) throws IOException {
+		try (
+			RandomAccessFile raf = new RandomAccessFile(file, "r");
+			FileChannel channel = raf.getChannel();
+		) {
+			final long size = channel.size();
+			final long[] bounds = chunkBounds(channel, size, Math.max(1, threads));
+			final int chunks = bounds.length - 1;
+
+			if (threads <= 1 || chunks == 1) {
+				List<byte[]> lines = new ArrayList<byte[]>();
+				for (int c = 0; c < chunks; c++) {
+					split(channel, bounds[c], bounds[c + 1], lines);
+				}
+				return lines;
+			}
+
+			ExecutorService workers = Executors.newFixedThreadPool(Math.min(threads, chunks),
+					new ThreadFactory() {
+						public Thread newThread(Runnable r) {
+							Thread thread = new Thread(r, "line-loader");
+							thread.setDaemon(true);
+							return thread;
+						}
+					});
+			try {
+				List<Future<List<byte[]>>> parts = new ArrayList<Future<List<byte[]>>>(chunks);
+				for (int c = 0; c < chunks; c++) {
+					final long from = bounds[c], to = bounds[c + 1];
+					parts.add(workers.submit(new Callable<List<byte[]>>() {
+						public List<byte[]> call() throws IOException {
+							List<byte[]> lines = new ArrayList<byte[]>();
+							split(channel, from, to, lines);
+							return lines;
+						}
+					}));
+				}
+
+				List<byte[]> lines = new ArrayList<byte[]>();
+				for (Future<List<byte[]>> part : parts) {
+					lines.addAll(part.get());
+				}
+				return lines;
+			} catch (InterruptedException e) {
+				throw new InterruptedIOException("interrupted loading " + file);
+			} catch (ExecutionException e) {
+				if (e.getCause() instanceof IOException) {
+					throw (IOException) e.getCause();
+				}
+				throw new IOException(e.getCause());
+			} finally {
+				workers.shutdownNow();
+			}
+		}
+	}
+
+	/**
+	 * Cut [0, size) into chunks of roughly equal length (no
+	 * more than CHUNK_BYTES, so each can be mapped), each ending
+	 * just after a line break or at the end of the file.
+	 */
+	private static long[] chunkBounds(FileChannel channel, long size, int threads) throws IOException {
+		final long target = Math.max(1, Math.min(CHUNK_BYTES, (size + threads - 1) / threads));
+
+		List<Long> bounds = new ArrayList<Long>();
+		bounds.add(0L);
+		long position = 0;
+		while (position < size) {
+			position = nextLine(channel, Math.min(size, position + target), size);
+			bounds.add(position);
+		}
+
+		long[] result = new long[bounds.size()];
+		for (int i = 0; i < result.length; i++) {
+			result[i] = bounds.get(i);
+		}
+		return result;
+	}
+
+	/**
+	 * @return the position just after the first line break at or
+	 * after position, or size if there isn't one
+	 */
+	private static long nextLine(FileChannel channel, long position, long size) throws IOException {
+		if (position == 0 || position >= size) {
+			return position;
+		}
+		// Already at the start of a line?
+		ByteBuffer scan = ByteBuffer.allocate(SCAN_BYTES);
+		channel.read(scan, position - 1);
+		if (scan.get(0) == '\n') {
+			return position;
+		}
+
+		while (position < size) {
+			scan.clear();
+			final int n = channel.read(scan, position);
+			if (n <= 0) {
+				break;
+			}
+			for (int i = 0; i < n; i++) {
+				if (scan.get(i) == '\n') {
+					return position + i + 1;
+				}
+			}
+			position += n;
+		}
+		return size;
+	}
+
+	/**
+	 * Split the lines of [from, to), which starts at the start
+	 * of a line, onto the end of lines.
+	 */
+	private static void split(FileChannel channel, long from, long to, List<byte[]> lines) throws IOException {
+		if (from >= to) {
+			return;
+		}
+		final MappedByteBuffer chunk = channel.map(FileChannel.MapMode.READ_ONLY, from, to - from);
+		final int length = chunk.limit();
+
+		int start = 0;
+		for (int i = 0; i < length; i++) {
+			if (chunk.get(i) == '\n') {
+				lines.add(slice(chunk, start, i));
+				start = i + 1;
+			}
+		}
+		// The last line of the file needn't end in a line break.
+		if (start < length) {
+			lines.add(slice(chunk, start, length));
+		}
+	}
+
+	/**
+	 * Copy out [start, end) of chunk, less any trailing '\r'.
+	 * Moves the position of chunk, which isn't otherwise used.
+	 */
+	private static byte[] slice(ByteBuffer chunk, int start, int end) {
+		if (end > start && chunk.get(end - 1) == '\r') {
+			end--;
+		}
+		byte[] line = new byte[end - start];
+		chunk.position(start);
+		chunk.get(line);
+		return line;
+	}
+}
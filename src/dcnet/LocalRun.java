@@ -0,0 +1,99 @@
+package dcnet;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.Properties;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs a whole DC-net - every server and every client - as
+ * threads of one JVM, connected by a LoopbackTransport. Useful
+ * for profiling the protocol and its computation on their own,
+ * without separate processes or kernel networking.
+ * Usage: LocalRun clients servers
+ */
+public class LocalRun {
+
+	private static abstract class Participant implements Runnable {
+		public volatile Throwable failure;
+
+		public void run() {
+			try {
+				participate();
+			} catch (Throwable t) {
+				failure = t;
+			}
+		}
+
+		protected abstract void participate() throws IOException;
+	}
+
+	public static void main(String[] args) throws InterruptedException {
+		final int numClients = Integer.valueOf(args[0]);
+		final int numServers = Integer.valueOf(args[1]);
+
+		final Properties properties = new Properties();
+		try {
+			FileInputStream fis = new FileInputStream("run/config.properties");
+			properties.load(fis);
+			fis.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+			System.exit(1);
+		}
+
+		Logger.getGlobal().setLevel(Level.INFO);
+
+		final LoopbackTransport transport = new LoopbackTransport();
+		Participant[] participants = new Participant[numServers + numClients];
+		Thread[] threads = new Thread[participants.length];
+
+		for (int i = 0; i < numServers; i++) {
+			final Server server = new Server(properties, i, numClients, numServers);
+			server.setTransport(transport);
+			participants[i] = new Participant() {
+				protected void participate() throws IOException {
+					server.initializeConnections();
+					server.run(server.rounds);
+				}
+			};
+			threads[i] = new Thread(participants[i], "server-" + i);
+		}
+		for (int i = 0; i < numClients; i++) {
+			final int id = i;
+			final Client client = new Client(properties, id, numServers);
+			client.setTransport(transport);
+			participants[numServers + i] = new Participant() {
+				protected void participate() throws IOException {
+					client.readInputFromFile(String.format("run/input/%d.csv", id));
+					client.initializeConnection();
+					client.run(client.rounds);
+				}
+			};
+			threads[numServers + i] = new Thread(participants[numServers + i], "client-" + i);
+		}
+
+		final long start = System.currentTimeMillis();
+		for (Thread thread : threads) {
+			thread.start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		final long elapsed = System.currentTimeMillis() - start;
+
+		boolean failed = false;
+		for (int i = 0; i < participants.length; i++) {
+			if (participants[i].failure != null) {
+				System.err.println(threads[i].getName() + " failed:");
+				participants[i].failure.printStackTrace();
+				failed = true;
+			}
+		}
+
+		String fmt = "%d servers, %d clients: %d ms";
+		Logger.getGlobal().info(String.format(fmt, numServers, numClients, elapsed));
+		System.exit(failed ? 1 : 0);
+	}
+}
@@ -0,0 +1,204 @@
+package dcnet;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.ConnectException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * In-memory connections between participants running as
+ * threads of the same JVM, for measuring the protocol without
+ * any kernel networking in the way. Hosts are ignored; ports
+ * are only meaningful within one instance of the transport.
+ */
+public class LoopbackTransport implements Transport {
+	private static final int DEFAULT_PIPE_BYTES = 1 << 20;
+	private static final long CONNECT_TIMEOUT_MILLIS = 10000;
+
+	/**
+	 * A bounded one-way byte queue; writers block when it's
+	 * full, like they would on a full socket buffer.
+	 */
+	private static class Pipe {
+		private final byte[] ring;
+		private int head, size;
+		private boolean closed;
+
+		public Pipe(int capacity) {
+			ring = new byte[capacity];
+		}
+
+		public synchronized int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0) {
+				return 0;
+			}
+			while (size == 0) {
+				if (closed) {
+					return -1;
+				}
+				awaitChange();
+			}
+			final int n = Math.min(len, size);
+			final int first = Math.min(n, ring.length - head);
+			System.arraycopy(ring, head, b, off, first);
+			System.arraycopy(ring, 0, b, off + first, n - first);
+			head = (head + n) % ring.length;
+			size -= n;
+			notifyAll();
+			return n;
+		}
+
+		public synchronized void write(byte[] b, int off, int len) throws IOException {
+			while (len > 0) {
+				while (size == ring.length && !closed) {
+					awaitChange();
+				}
+				if (closed) {
+					throw new EOFException("pipe closed");
+				}
+				final int n = Math.min(len, ring.length - size);
+				final int tail = (head + size) % ring.length;
+				final int first = Math.min(n, ring.length - tail);
+				System.arraycopy(b, off, ring, tail, first);
+				System.arraycopy(b, off + first, ring, 0, n - first);
+				size += n;
+				off += n;
+				len -= n;
+				notifyAll();
+			}
+		}
+
+		public synchronized void close() {
+			closed = true;
+			notifyAll();
+		}
+
+		private void awaitChange() throws IOException {
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				throw new InterruptedIOException();
+			}
+		}
+	}
+
+	private static class LoopbackConnection implements Connection {
+		private final Pipe in, out;
+
+		private final InputStream is = new InputStream() {
+			public int read() throws IOException {
+				byte[] b = new byte[1];
+				return (read(b, 0, 1) < 0) ? -1 : (b[0] & 0xff);
+			}
+
+			public int read(byte[] b, int off, int len) throws IOException {
+				return in.read(b, off, len);
+			}
+		};
+
+		private final OutputStream os = new OutputStream() {
+			public void write(int b) throws IOException {
+				write(new byte[] { (byte) b }, 0, 1);
+			}
+
+			public void write(byte[] b, int off, int len) throws IOException {
+				out.write(b, off, len);
+			}
+		};
+
+		public LoopbackConnection(Pipe in, Pipe out) {
+			this.in = in;
+			this.out = out;
+		}
+
+		public InputStream getInputStream() {
+			return is;
+		}
+
+		public OutputStream getOutputStream() {
+			return os;
+		}
+
+		public void close() {
+			in.close();
+			out.close();
+		}
+	}
+
+	private class LoopbackListener implements Listener {
+		private final int port;
+		private final BlockingQueue<Connection> pending = new LinkedBlockingQueue<Connection>();
+
+		public LoopbackListener(int port) {
+			this.port = port;
+		}
+
+		public Connection accept() throws IOException {
+			try {
+				return pending.take();
+			} catch (InterruptedException e) {
+				throw new InterruptedIOException("interrupted in accept");
+			}
+		}
+
+		public void close() {
+			listeners.remove(port, this);
+		}
+	}
+
+	private final ConcurrentMap<Integer, LoopbackListener> listeners =
+		new ConcurrentHashMap<Integer, LoopbackListener>();
+	private final int pipeBytes;
+
+	public LoopbackTransport() {
+		this(DEFAULT_PIPE_BYTES);
+	}
+
+	public LoopbackTransport(int pipeBytes) {
+		this.pipeBytes = pipeBytes;
+	}
+
+	public Listener listen(int port) throws IOException {
+		LoopbackListener listener = new LoopbackListener(port);
+		if (listeners.putIfAbsent(port, listener) != null) {
+			throw new IOException(String.format("Port %d already in use.", port));
+		}
+		synchronized (listeners) {
+			listeners.notifyAll();
+		}
+		return listener;
+	}
+
+	/**
+	 * Connect to whoever is listening on port, waiting a while
+	 * for them to start listening if need be; threads started
+	 * together don't get to pick who goes first.
+	 */
+	public Connection connect(String host, int port) throws IOException {
+		final long deadline = System.currentTimeMillis() + CONNECT_TIMEOUT_MILLIS;
+		LoopbackListener listener;
+		synchronized (listeners) {
+			while ((listener = listeners.get(port)) == null) {
+				final long remaining = deadline - System.currentTimeMillis();
+				if (remaining <= 0) {
+					throw new ConnectException(String.format("Nothing listening on %d.", port));
+				}
+				try {
+					listeners.wait(remaining);
+				} catch (InterruptedException e) {
+					throw new InterruptedIOException("interrupted in connect");
+				}
+			}
+		}
+
+		Pipe up = new Pipe(pipeBytes), down = new Pipe(pipeBytes);
+		listener.pending.add(new LoopbackConnection(up, down));
+		return new LoopbackConnection(down, up);
+	}
+}
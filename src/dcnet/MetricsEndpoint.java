@@ -0,0 +1,58 @@
+package dcnet;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Serves the metrics of the most recent round over HTTP on
+ * the loopback interface, as JSON at /metrics and as CSV at
+ * /metrics.csv, for whatever is scraping them.
+ */
+public class MetricsEndpoint {
+	private final HttpServer http;
+
+	private volatile byte[] json = "{}".getBytes(StandardCharsets.UTF_8);
+	private volatile byte[] csv = (RoundMetrics.CSV_HEADER + "\n").getBytes(StandardCharsets.UTF_8);
+
+	public MetricsEndpoint(int port) throws IOException {
+		http = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+		http.createContext("/metrics", new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException {
+				final boolean wantCsv = exchange.getRequestURI().getPath().endsWith(".csv");
+				respond(exchange, wantCsv ? csv : json,
+						wantCsv ? "text/csv" : "application/json");
+			}
+		});
+	}
+
+	public void start() {
+		http.start();
+	}
+
+	public void stop() {
+		http.stop(0);
+	}
+
+	/**
+	 * Replace what's served with the given round.
+	 */
+	public void publish(RoundMetrics metrics) {
+		json = metrics.toJson().getBytes(StandardCharsets.UTF_8);
+		csv = (RoundMetrics.CSV_HEADER + "\n" + metrics.toCsv()).getBytes(StandardCharsets.UTF_8);
+	}
+
+	private static void respond(HttpExchange exchange, byte[] body, String type) throws IOException {
+		exchange.getResponseHeaders().set("Content-Type", type);
+		exchange.sendResponseHeaders(200, body.length);
+		OutputStream os = exchange.getResponseBody();
+		os.write(body);
+		os.close();
+	}
+}
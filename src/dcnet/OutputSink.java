@@ -0,0 +1,238 @@
+package dcnet;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import scheduler.SlotUtils;
+
+/**
+ * Writes decoded slots out to a file on a thread of its own, so
+ * the protocol thread only has to queue them. Each line is one
+ * or more slots' data (or plain fields), separated by ": ", with
+ * "<>" standing in for a missing one. The queue is bounded: when the writer
+ * falls behind, write() waits for room, and the waits are
+ * counted (and timed, if given a histogram) as backpressure.
+ */
+public class OutputSink implements Closeable {
+	private static final byte[] SEPARATOR = { ':', ' ' };
+	private static final byte[] MISSING = { '<', '>' };
+
+	// Queued after everything else to stop the writer.
+	private static final Line END = new Line(new byte[0][], false);
+
+	private final BlockingQueue<Line> queue;
+	private final OutputStream out;
+	private final Thread writer;
+
+	private volatile IOException error;
+	private boolean closed;
+
+	private Histogram stallLatency;
+	private long queued, stalls, stallNanos;
+	private int maxDepth;
+
+	/**
+	 * @param append add to the end of file rather than replace it
+	 * @param capacity the most lines to hold before write() waits
+	 */
+	public OutputSink(String file, boolean append, int capacity) throws IOException {
+		this.queue = new ArrayBlockingQueue<Line>(Math.max(1, capacity));
+		this.out = new BufferedOutputStream(new FileOutputStream(file, append), 1 << 16);
+		this.writer = new Thread(new Runnable() {
+			public void run() {
+				drain();
+			}
+		}, "output-sink");
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	/**
+	 * Time each wait for room in the queue into latency.
+	 */
+	public void setStallLatency(Histogram latency) {
+		this.stallLatency = latency;
+	}
+
+	/**
+	 * Queue a line of the given slots, which are encoded as by
+	 * SlotUtils and may be null. The sink takes the arrays over:
+	 * the caller mustn't change them afterwards.
+	 */
+	public void write(byte[]... slots) throws IOException {
+		queue(new Line(slots, true));
+	}
+
+	/**
+	 * Queue a line of the given fields, written out as they are;
+	 * any may be null. As with write(), the sink takes the arrays
+	 * over.
+	 */
+	public void writeFields(byte[]... fields) throws IOException {
+		queue(new Line(fields, false));
+	}
+
+	private void queue(Line line) throws IOException {
+		checkError();
+		final int depth = queue.size();
+		if (depth > maxDepth) {
+			maxDepth = depth;
+		}
+		queued++;
+		if (queue.offer(line)) {
+			return;
+		}
+
+		final long start = System.nanoTime();
+		try {
+			queue.put(line);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("interrupted queueing output");
+		}
+		final long waited = System.nanoTime() - start;
+		stalls++;
+		stallNanos += waited;
+		if (stallLatency != null) {
+			stallLatency.record(waited);
+		}
+	}
+
+	/**
+	 * @return the number of lines queued so far
+	 */
+	public long getQueued() {
+		return queued;
+	}
+
+	/**
+	 * @return the number of times write() had to wait for room
+	 */
+	public long getStalls() {
+		return stalls;
+	}
+
+	public long getStallNanos() {
+		return stallNanos;
+	}
+
+	/**
+	 * @return the most lines seen waiting in the queue at once
+	 */
+	public int getMaxDepth() {
+		return maxDepth;
+	}
+
+	/**
+	 * Wait for everything queued to be written, then close the
+	 * file, throwing anything that went wrong along the way.
+	 */
+	public void close() throws IOException {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		try {
+			queue.put(END);
+			writer.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			writer.interrupt();
+			throw new InterruptedIOException("interrupted closing output");
+		} finally {
+			out.close();
+		}
+		checkError();
+	}
+
+	private void checkError() throws IOException {
+		if (error != null) {
+			throw new IOException("error writing output", error);
+		}
+	}
+
+	/**
+	 * The writer: take whatever's queued, write it, and flush
+	 * whenever the queue runs dry. After an error, lines are
+	 * still taken (so write() never waits on a dead writer),
+	 * but dropped.
+	 */
+	private void drain() {
+		final List<Line> lines = new ArrayList<Line>();
+		try {
+			while (true) {
+				lines.add(queue.take());
+				queue.drainTo(lines);
+				for (Line line : lines) {
+					if (line == END) {
+						flush();
+						return;
+					}
+					if (error == null) {
+						try {
+							writeLine(line);
+						} catch (IOException e) {
+							error = e;
+						}
+					}
+				}
+				lines.clear();
+				if (queue.isEmpty()) {
+					flush();
+				}
+			}
+		} catch (InterruptedException e) {
+			// Only interrupted when close() is.
+		}
+	}
+
+	private void flush() {
+		if (error == null) {
+			try {
+				out.flush();
+			} catch (IOException e) {
+				error = e;
+			}
+		}
+	}
+
+	private void writeLine(Line line) throws IOException {
+		final byte[][] fields = line.fields;
+		for (int i = 0; i < fields.length; i++) {
+			if (i > 0) {
+				out.write(SEPARATOR);
+			}
+			final byte[] slot = fields[i];
+			if (slot == null) {
+				out.write(MISSING);
+			} else if (!line.slots) {
+				out.write(slot);
+			} else {
+				// The data goes out as is; it's ISO-8859-1 either way.
+				final int length = Math.min(SlotUtils.getLength(slot),
+						slot.length - SlotUtils.METADATA_BYTES);
+				out.write(slot, SlotUtils.METADATA_BYTES, Math.max(0, length));
+			}
+		}
+		out.write('\n');
+	}
+
+	private static class Line {
+		final byte[][] fields;
+		// Whether the fields are slots encoded as by SlotUtils.
+		final boolean slots;
+
+		Line(byte[][] fields, boolean slots) {
+			this.fields = fields;
+			this.slots = slots;
+		}
+	}
+}
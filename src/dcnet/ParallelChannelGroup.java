@@ -0,0 +1,258 @@
+package dcnet;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+
+/**
+ * Splits a server's client connections into ChannelGroups, each
+ * read on its own thread into its own partial XOR, so the work
+ * of taking in and combining ciphertexts spreads over several
+ * cores. The calling thread reads the first group straight into
+ * its buffer, then folds the other partials in; they're a few
+ * KB each, cheaper to XOR than to hand off again. Every other
+ * group has a thread of its own for good, handed each read or
+ * write through fields set in place, so nothing is allocated
+ * per call. With one group everything happens on the calling
+ * thread, as ChannelGroup does. Like it, the channels must only
+ * be used through here.
+ */
+public class ParallelChannelGroup {
+	/**
+	 * A group's thread, and the read or write it's to do next.
+	 * Guarded by its own monitor.
+	 */
+	private class Worker implements Runnable {
+		private final int group;
+
+		private boolean write;
+		private byte[] buffer;
+		private int length;
+
+		// Calls handed over and calls finished so far.
+		private long requested, completed;
+		private Throwable failure;
+		private boolean closed;
+
+		public Worker(int group) {
+			this.group = group;
+		}
+
+		public synchronized void start(boolean write, byte[] buffer, int length) {
+			this.write = write;
+			this.buffer = buffer;
+			this.length = length;
+			requested++;
+			notifyAll();
+		}
+
+		public synchronized void await() throws IOException {
+			try {
+				while (completed < requested) {
+					wait();
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("interrupted reading clients");
+			}
+			if (failure != null) {
+				final Throwable cause = failure;
+				failure = null;
+				if (cause instanceof IOException) {
+					throw (IOException) cause;
+				}
+				throw new IOException(cause);
+			}
+		}
+
+		public synchronized void close() {
+			closed = true;
+			notifyAll();
+		}
+
+		public void run() {
+			while (true) {
+				final boolean write;
+				final byte[] buffer;
+				final int length;
+				synchronized (this) {
+					try {
+						while (completed == requested && !closed) {
+							wait();
+						}
+					} catch (InterruptedException e) {
+						return;
+					}
+					if (closed) {
+						return;
+					}
+					write = this.write;
+					buffer = this.buffer;
+					length = this.length;
+				}
+
+				Throwable failure = null;
+				try {
+					if (write) {
+						groups[group].write(buffer, length);
+					} else {
+						if (partials[group].length < length) {
+							partials[group] = new byte[length];
+						}
+						Arrays.fill(partials[group], 0, length, (byte) 0);
+						groups[group].read(partials[group], length);
+					}
+				} catch (Throwable t) {
+					failure = t;
+				}
+
+				synchronized (this) {
+					this.failure = failure;
+					this.buffer = null;
+					completed++;
+					notifyAll();
+				}
+			}
+		}
+	}
+
+	private final ChannelGroup[] groups;
+
+	// Each group's thread, and its partial XOR; the first group
+	// has neither, since the caller reads it into its buffer.
+	private final Worker[] workers;
+	private final byte[][] partials;
+
+	// Each group's read latencies, folded into readLatency
+	// after every read, since Histograms aren't thread-safe.
+	private final Histogram[] latencies;
+	private Histogram readLatency;
+
+	/**
+	 * @param threads how many groups (and threads) to split the
+	 * channels over, at most one per channel
+	 */
+	public ParallelChannelGroup(int threads, SocketChannel... channels) throws IOException {
+		final int count = Math.max(1, Math.min(threads, channels.length));
+		groups = new ChannelGroup[count];
+		workers = new Worker[count];
+		partials = new byte[count][];
+		latencies = new Histogram[count];
+
+		// Deal the channels out in contiguous runs.
+		for (int g = 0; g < count; g++) {
+			final int from = (int) ((long) channels.length * g / count);
+			final int to = (int) ((long) channels.length * (g + 1) / count);
+			groups[g] = new ChannelGroup(Arrays.copyOfRange(channels, from, to));
+			partials[g] = new byte[0];
+			latencies[g] = new Histogram("clientRead", "ns");
+		}
+
+		for (int g = 1; g < count; g++) {
+			workers[g] = new Worker(g);
+			Thread thread = new Thread(workers[g], "client-reduce");
+			thread.setDaemon(true);
+			thread.start();
+		}
+	}
+
+	public int size() {
+		int size = 0;
+		for (ChannelGroup group : groups) {
+			size += group.size();
+		}
+		return size;
+	}
+
+	/**
+	 * @return the number of groups the channels are split into
+	 */
+	public int getGroupCount() {
+		return groups.length;
+	}
+
+	/**
+	 * Record, for every channel on every read, the time from the
+	 * start of the read until all of its bytes had arrived.
+	 */
+	public void setReadLatency(Histogram readLatency) {
+		this.readLatency = readLatency;
+		for (int g = 0; g < groups.length; g++) {
+			groups[g].setReadLatency((readLatency != null) ? latencies[g] : null);
+		}
+	}
+
+	/**
+	 * Read length bytes from every channel, XORing them all into
+	 * the start of buffer.
+	 */
+	public void read(byte[] buffer, int length) throws IOException {
+		for (int g = 1; g < groups.length; g++) {
+			workers[g].start(false, null, length);
+		}
+		try {
+			groups[0].read(buffer, length);
+		} finally {
+			awaitAll();
+		}
+		for (int g = 1; g < groups.length; g++) {
+			XORCipher.xorBytes(partials[g], 0, buffer, 0, length);
+		}
+		collectLatencies();
+	}
+
+	/**
+	 * Write the first length bytes of buffer to every channel,
+	 * each group from its own thread.
+	 */
+	public void write(byte[] buffer, int length) throws IOException {
+		for (int g = 1; g < groups.length; g++) {
+			workers[g].start(true, buffer, length);
+		}
+		try {
+			groups[0].write(buffer, length);
+		} finally {
+			awaitAll();
+		}
+	}
+
+	public void close() throws IOException {
+		for (int g = 1; g < groups.length; g++) {
+			workers[g].close();
+		}
+		for (ChannelGroup group : groups) {
+			group.close();
+		}
+	}
+
+	/**
+	 * Wait for every other group's thread to finish its call,
+	 * then throw the first failure among them, if any.
+	 */
+	private void awaitAll() throws IOException {
+		IOException failure = null;
+		for (int g = 1; g < groups.length; g++) {
+			try {
+				workers[g].await();
+			} catch (IOException e) {
+				if (failure == null) {
+					failure = e;
+				}
+			}
+		}
+		if (failure != null) {
+			throw failure;
+		}
+	}
+
+	private void collectLatencies() {
+		if (readLatency == null) {
+			return;
+		}
+		for (Histogram latency : latencies) {
+			readLatency.add(latency);
+			latency.reset();
+		}
+	}
+}
@@ -0,0 +1,30 @@
+package dcnet;
+
+/**
+ * A SlotCipher that splits its secrets over threads as the pad
+ * is asked for, rather than ahead of time as PrecomputedSlotCipher
+ * does; for when there's no pad buffer to fill.
+ */
+public class ParallelSlotCipher extends SlotCipher {
+	private final RangeSplit split;
+
+	/**
+	 * @param threads how many threads, the caller's included, to
+	 * split the secrets over
+	 */
+	public ParallelSlotCipher(long[] secrets, int threads) {
+		super(secrets);
+		split = new RangeSplit(ciphers.length, threads, MIN_PARALLEL_BYTES, "pad-worker");
+	}
+
+	@Override
+	public void close() {
+		split.close();
+	}
+
+	@Override
+	public byte[] xorKeyStream(byte[] message, int offset, int length) {
+		split.xor(cipherRanges, message, offset, length);
+		return message;
+	}
+}
@@ -0,0 +1,187 @@
+package dcnet;
+
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A SlotCipher that computes the combined pad of all its
+ * secrets ahead of time on background threads. Each of the
+ * underlying keystreams is strictly sequential, so the pad is
+ * produced as one continuous stream of fixed-size blocks and
+ * consumers simply take as many bytes as they need from it.
+ * Work on each block is split across threads by secret (i.e.
+ * client) range, the producer taking the first range itself,
+ * and the partial pads are combined before the block is queued.
+ */
+public class PrecomputedSlotCipher extends SlotCipher {
+	private static final long POLL_MILLIS = 100;
+
+	private final int blockSize;
+
+	// Pads ready for use, and spent blocks ready for re-use.
+	private final BlockingQueue<byte[]> pads;
+	private final BlockingQueue<byte[]> spare;
+
+	private final RangeSplit split;
+	private final Thread producer;
+	private volatile boolean running;
+	private volatile Throwable failure;
+
+	// The block currently being consumed.
+	private byte[] current;
+	private int used;
+
+	// Sizing statistics; only touched by the consuming thread.
+	private long blocksTaken;
+	private long fillTally;
+	private int minFill = Integer.MAX_VALUE;
+	private int stalls;
+	private long stallNanos;
+
+	public PrecomputedSlotCipher(long[] secrets, int blockSize, int depth, int threads) {
+		super(secrets);
+		if (blockSize < 1 || depth < 1 || threads < 1) {
+			String msg = "blockSize, depth and threads must be positive";
+			throw new IllegalArgumentException(msg);
+		}
+		this.blockSize = blockSize;
+		this.pads = new ArrayBlockingQueue<byte[]>(depth);
+		this.spare = new ArrayBlockingQueue<byte[]>(depth + 2);
+
+		// Every block is worth splitting, being computed ahead.
+		this.split = new RangeSplit(ciphers.length, threads, 0, "pad-worker");
+
+		this.producer = new Thread(new Runnable() {
+			public void run() {
+				produce();
+			}
+		}, "pad-producer");
+		this.producer.setDaemon(true);
+	}
+
+	/**
+	 * Start filling the pad buffer in the background.
+	 */
+	public void start() {
+		running = true;
+		producer.start();
+	}
+
+	/**
+	 * Stop the background threads. Any pads not yet consumed
+	 * are discarded, so the cipher is unusable afterwards.
+	 */
+	@Override
+	public void close() {
+		running = false;
+		producer.interrupt();
+		split.close();
+	}
+
+	private void produce() {
+		try {
+			while (running) {
+				byte[] block = spare.poll();
+				if (block == null) {
+					block = new byte[blockSize];
+				}
+				computeBlock(block);
+				pads.put(block);
+			}
+		} catch (InterruptedException e) {
+			// Shutting down.
+		} catch (RuntimeException e) {
+			if (running) {
+				failure = e;
+			}
+		}
+	}
+
+	/**
+	 * Compute the next block of the combined pad into block,
+	 * a range of ciphers per thread.
+	 */
+	private void computeBlock(byte[] block) {
+		Arrays.fill(block, (byte) 0);
+		split.xor(cipherRanges, block, 0, block.length);
+	}
+
+	private byte[] nextBlock() {
+		final int fill = pads.size();
+		fillTally += fill;
+		minFill = Math.min(minFill, fill);
+		blocksTaken++;
+
+		byte[] block = pads.poll();
+		if (block != null) {
+			return block;
+		}
+
+		// Pipeline ran dry; wait on it and account for the stall.
+		stalls++;
+		final long start = System.nanoTime();
+		try {
+			while (block == null) {
+				if (failure != null || !running) {
+					throw new IllegalStateException("pad pipeline stopped", failure);
+				}
+				block = pads.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("interrupted waiting for pad", e);
+		} finally {
+			stallNanos += System.nanoTime() - start;
+		}
+		return block;
+	}
+
+	@Override
+	public byte[] xorKeyStream(byte[] message, int offset, int length) {
+		final int end = offset + length;
+		while (offset < end) {
+			if (current == null || used == current.length) {
+				if (current != null) {
+					spare.offer(current);
+				}
+				current = nextBlock();
+				used = 0;
+			}
+			final int n = Math.min(end - offset, current.length - used);
+			XORCipher.xorBytes(current, used, message, offset, n);
+			offset += n;
+			used += n;
+		}
+		return message;
+	}
+
+	public int getDepth() {
+		return pads.size() + pads.remainingCapacity();
+	}
+
+	public long getBlocksTaken() {
+		return blocksTaken;
+	}
+
+	/**
+	 * @return the average number of ready blocks seen when
+	 * a new block was needed
+	 */
+	public double getAverageFill() {
+		return (blocksTaken == 0) ? 0 : fillTally / (double) blocksTaken;
+	}
+
+	public int getMinFill() {
+		return (blocksTaken == 0) ? 0 : minFill;
+	}
+
+	public int getStalls() {
+		return stalls;
+	}
+
+	public long getStallNanos() {
+		return stallNanos;
+	}
+}
@@ -0,0 +1,273 @@
+package dcnet;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * An append-only binary archive of the slots disclosed in each
+ * round, one block per round, which ArchiveReader can search
+ * without parsing anything. A block (all big-endian) is:
+ *
+ *   header:  int BLOCK_MAGIC, short VERSION, short 0,
+ *            int round, int records, long block length
+ *   records: int slot, short attempt, int length,
+ *            long checksum, then length bytes of data
+ *   index:   long hash of data, int offset of record in block,
+ *            per record, sorted by hash
+ *   footer:  int FOOTER_MAGIC, int round, int records,
+ *            int offset of index in block, long block length
+ *
+ * A block is written all at once, so a block cut short by a
+ * crash is the last in the file; it's cut off when the archive
+ * is next opened for writing, so later blocks follow on from
+ * the last good one. Round ids carry on from the last round in
+ * the file too, so they stay unique across restarts.
+ */
+public class RoundArchive implements Closeable {
+	public static final int BLOCK_MAGIC = 0x44435242; // "DCRB"
+	public static final int FOOTER_MAGIC = 0x44435246; // "DCRF"
+	public static final short VERSION = 1;
+
+	public static final int HEADER_BYTES = 24;
+	public static final int RECORD_BYTES = 18;
+	public static final int INDEX_BYTES = 12;
+	public static final int FOOTER_BYTES = 24;
+
+	private final FileChannel channel;
+
+	// The block being built, and its index so far.
+	private ByteBuffer block = ByteBuffer.allocate(1 << 16);
+	private long[] hashes = new long[256];
+	private int[] offsets = new int[256];
+	private int records;
+	private int round;
+
+	// The id the next round is archived under.
+	private int nextRound;
+
+	/**
+	 * Open file for appending, creating it if need be, and cut
+	 * off any incomplete block at its end.
+	 */
+	public RoundArchive(String file) throws IOException {
+		this.channel = FileChannel.open(Paths.get(file), StandardOpenOption.CREATE,
+				StandardOpenOption.READ, StandardOpenOption.WRITE);
+		final long size = channel.size();
+		final ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+		final ByteBuffer footer = ByteBuffer.allocate(FOOTER_BYTES);
+
+		long position = 0;
+		for (long length; (length = checkBlock(channel, position, size, header, footer)) > 0; ) {
+			nextRound = header.getInt(8) + 1;
+			position += length;
+		}
+		if (position < size) {
+			channel.truncate(position);
+		}
+		channel.position(position);
+	}
+
+	/**
+	 * @return the id the next round begun will be archived
+	 * under, one past the last round already in the file
+	 */
+	public int getNextRound() {
+		return nextRound;
+	}
+
+	/**
+	 * Start the block for the next round, archived under the id
+	 * getNextRound() gave.
+	 */
+	public void beginRound() {
+		this.round = nextRound++;
+		this.round = round;
+		this.records = 0;
+		block.clear();
+		block.position(HEADER_BYTES);
+	}
+
+	/**
+	 * Add the data of a slot, disclosed on the given attempt.
+	 */
+	public void add(int slot, int attempt, long checksum, byte[] data, int offset, int length) {
+		ensureCapacity(RECORD_BYTES + length);
+		if (records == hashes.length) {
+			hashes = Arrays.copyOf(hashes, records * 2);
+			offsets = Arrays.copyOf(offsets, records * 2);
+		}
+		hashes[records] = hash(data, offset, length);
+		offsets[records] = block.position();
+		records++;
+
+		block.putInt(slot)
+			.putShort((short) attempt)
+			.putInt(length)
+			.putLong(checksum)
+			.put(data, offset, length);
+	}
+
+	/**
+	 * Finish the round's block and append it to the file.
+	 */
+	public void endRound() throws IOException {
+		sortIndex(hashes, offsets, records);
+
+		final int indexOffset = block.position();
+		ensureCapacity(records * INDEX_BYTES + FOOTER_BYTES);
+		for (int i = 0; i < records; i++) {
+			block.putLong(hashes[i]).putInt(offsets[i]);
+		}
+		final long length = block.position() + FOOTER_BYTES;
+		block.putInt(FOOTER_MAGIC)
+			.putInt(round)
+			.putInt(records)
+			.putInt(indexOffset)
+			.putLong(length);
+
+		block.putInt(0, BLOCK_MAGIC)
+			.putShort(4, VERSION)
+			.putShort(6, (short) 0)
+			.putInt(8, round)
+			.putInt(12, records)
+			.putLong(16, length);
+
+		block.flip();
+		while (block.hasRemaining()) {
+			channel.write(block);
+		}
+	}
+
+	public void close() throws IOException {
+		channel.close();
+	}
+
+	/**
+	 * Check that a whole, well-formed block starts at position,
+	 * leaving its header and footer in the buffers given.
+	 * @return the block's length, or -1 if there's no such block
+	 */
+	static long checkBlock(FileChannel channel, long position, long size,
+			ByteBuffer header, ByteBuffer footer) throws IOException {
+		if (position + HEADER_BYTES > size) {
+			return -1;
+		}
+		header.clear();
+		readFully(channel, header, position);
+		final long length = header.getLong(16);
+		if (header.getInt(0) != BLOCK_MAGIC
+				|| header.getShort(4) != VERSION
+				|| length < HEADER_BYTES + FOOTER_BYTES
+				|| length > Integer.MAX_VALUE
+				|| position + length > size) {
+			return -1;
+		}
+		footer.clear();
+		readFully(channel, footer, position + length - FOOTER_BYTES);
+		if (footer.getInt(0) != FOOTER_MAGIC
+				|| footer.getInt(4) != header.getInt(8)
+				|| footer.getLong(16) != length) {
+			return -1;
+		}
+		return length;
+	}
+
+	private static void readFully(FileChannel channel, ByteBuffer buffer, long position)
+			throws IOException {
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, position + buffer.position()) < 0) {
+				throw new IOException("archive truncated");
+			}
+		}
+	}
+
+	/**
+	 * The hash elements are indexed by: 64-bit FNV-1a, with the
+	 * bits mixed up some more at the end.
+	 */
+	public static long hash(byte[] data, int offset, int length) {
+		long h = 0xcbf29ce484222325L;
+		for (int i = offset; i < offset + length; i++) {
+			h = (h ^ (data[i] & 0xff)) * 0x100000001b3L;
+		}
+		return mix(h);
+	}
+
+	/**
+	 * As hash(), for data read in place with absolute gets.
+	 */
+	public static long hash(ByteBuffer data, int offset, int length) {
+		long h = 0xcbf29ce484222325L;
+		for (int i = offset; i < offset + length; i++) {
+			h = (h ^ (data.get(i) & 0xff)) * 0x100000001b3L;
+		}
+		return mix(h);
+	}
+
+	private static long mix(long h) {
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		return h;
+	}
+
+	private void ensureCapacity(int more) {
+		if (block.remaining() >= more) {
+			return;
+		}
+		final long needed = (long) block.position() + more;
+		if (needed > Integer.MAX_VALUE - 8) {
+			throw new IllegalStateException("round too large to archive");
+		}
+		ByteBuffer grown = ByteBuffer.allocate((int) Math.min(Integer.MAX_VALUE - 8,
+					Math.max(needed, 2L * block.capacity())));
+		block.flip();
+		grown.put(block);
+		block = grown;
+	}
+
+	/**
+	 * Heapsort the first count hashes, taking the offsets along.
+	 */
+	private static void sortIndex(long[] hashes, int[] offsets, int count) {
+		for (int i = count / 2 - 1; i >= 0; i--) {
+			siftDown(hashes, offsets, i, count);
+		}
+		for (int end = count - 1; end > 0; end--) {
+			swap(hashes, offsets, 0, end);
+			siftDown(hashes, offsets, 0, end);
+		}
+	}
+
+	private static void siftDown(long[] hashes, int[] offsets, int i, int count) {
+		while (true) {
+			int largest = i;
+			final int left = 2 * i + 1, right = left + 1;
+			if (left < count && hashes[left] > hashes[largest]) {
+				largest = left;
+			}
+			if (right < count && hashes[right] > hashes[largest]) {
+				largest = right;
+			}
+			if (largest == i) {
+				return;
+			}
+			swap(hashes, offsets, i, largest);
+			i = largest;
+		}
+	}
+
+	private static void swap(long[] hashes, int[] offsets, int i, int j) {
+		final long h = hashes[i];
+		hashes[i] = hashes[j];
+		hashes[j] = h;
+		final int o = offsets[i];
+		offsets[i] = offsets[j];
+		offsets[j] = o;
+	}
+}
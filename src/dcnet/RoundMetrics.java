@@ -0,0 +1,140 @@
+package dcnet;
+
+import java.util.Locale;
+
+/**
+ * Per-phase timings and counters for one server round, reset
+ * at the start of each round. Timings are in nanoseconds; each
+ * phase is recorded once per slot (or batch of slots), except
+ * for the control slot, which is recorded once per round, and
+ * client reads, which are recorded once per client per read.
+ */
+public class RoundMetrics {
+	public static final String CSV_HEADER =
+		"server,round,metric,unit,count,sum,min,mean,p50,p90,p99,max";
+
+	// Collecting (and combining) the control slot.
+	public final Histogram control = new Histogram("control", "ns");
+	// Waiting for a slot's ciphertext from all the clients.
+	public final Histogram clientGather = new Histogram("clientGather", "ns");
+	// From the start of a read until each client's bytes are in.
+	public final Histogram clientRead = new Histogram("clientRead", "ns");
+	// Combining with the other servers.
+	public final Histogram serverExchange = new Histogram("serverExchange", "ns");
+	// Computing our own pads.
+	public final Histogram cipher = new Histogram("cipher", "ns");
+	// Checking the plaintext of a slot.
+	public final Histogram decode = new Histogram("decode", "ns");
+	// Sending the plaintext back down to the clients.
+	public final Histogram broadcast = new Histogram("broadcast", "ns");
+	// Attempts used by each slot.
+	public final Histogram attempts = new Histogram("attempts", "count");
+	// Waiting for room to queue a slot for the output file.
+	public final Histogram outputStall = new Histogram("outputStall", "ns");
+
+	private final Histogram[] histograms = {
+		control, clientGather, clientRead, serverExchange, cipher, decode, broadcast, attempts,
+		outputStall
+	};
+
+	private final int server;
+	private int round;
+	private long startMillis, elapsedMillis;
+	private long slots, bytes, collisions, empty;
+
+	public RoundMetrics(int server) {
+		this.server = server;
+	}
+
+	public void begin(int round) {
+		this.round = round;
+		this.startMillis = System.currentTimeMillis();
+		this.elapsedMillis = 0;
+		slots = bytes = collisions = empty = 0;
+		for (Histogram histogram : histograms) {
+			histogram.reset();
+		}
+	}
+
+	public void end() {
+		elapsedMillis = System.currentTimeMillis() - startMillis;
+	}
+
+	public void setCounts(long slots, long bytes, long collisions, long empty) {
+		this.slots = slots;
+		this.bytes = bytes;
+		this.collisions = collisions;
+		this.empty = empty;
+	}
+
+	public int getRound() {
+		return round;
+	}
+
+	/**
+	 * @return the round as a single-line JSON object
+	 */
+	public String toJson() {
+		StringBuilder sb = new StringBuilder(1024);
+		sb.append("{\"server\":").append(server)
+			.append(",\"round\":").append(round)
+			.append(",\"start\":").append(startMillis)
+			.append(",\"timeMillis\":").append(elapsedMillis)
+			.append(",\"slots\":").append(slots)
+			.append(",\"bytes\":").append(bytes)
+			.append(",\"collisions\":").append(collisions)
+			.append(",\"empty\":").append(empty)
+			.append(",\"histograms\":{");
+		for (int i = 0; i < histograms.length; i++) {
+			final Histogram h = histograms[i];
+			if (i > 0) {
+				sb.append(',');
+			}
+			sb.append('"').append(h.getName()).append("\":{")
+				.append("\"unit\":\"").append(h.getUnit()).append('"')
+				.append(",\"count\":").append(h.getCount())
+				.append(",\"sum\":").append(h.getSum())
+				.append(",\"min\":").append(h.getMin())
+				.append(",\"mean\":").append(String.format(Locale.ROOT, "%.1f", h.getMean()))
+				.append(",\"p50\":").append(h.getPercentile(0.50))
+				.append(",\"p90\":").append(h.getPercentile(0.90))
+				.append(",\"p99\":").append(h.getPercentile(0.99))
+				.append(",\"max\":").append(h.getMax())
+				.append('}');
+		}
+		return sb.append("}}").toString();
+	}
+
+	/**
+	 * @return the round as CSV rows (see CSV_HEADER), one per
+	 * histogram and one per counter, the latter filling in only
+	 * the count column
+	 */
+	public String toCsv() {
+		StringBuilder sb = new StringBuilder(1024);
+		final String prefix = server + "," + round + ",";
+		for (Histogram h : histograms) {
+			sb.append(prefix).append(h.getName()).append(',').append(h.getUnit())
+				.append(',').append(h.getCount())
+				.append(',').append(h.getSum())
+				.append(',').append(h.getMin())
+				.append(',').append(String.format(Locale.ROOT, "%.1f", h.getMean()))
+				.append(',').append(h.getPercentile(0.50))
+				.append(',').append(h.getPercentile(0.90))
+				.append(',').append(h.getPercentile(0.99))
+				.append(',').append(h.getMax())
+				.append('\n');
+		}
+		appendCounter(sb, prefix, "timeMillis", "ms", elapsedMillis);
+		appendCounter(sb, prefix, "slots", "count", slots);
+		appendCounter(sb, prefix, "bytes", "bytes", bytes);
+		appendCounter(sb, prefix, "collisions", "count", collisions);
+		appendCounter(sb, prefix, "empty", "count", empty);
+		return sb.toString();
+	}
+
+	private static void appendCounter(StringBuilder sb, String prefix, String name, String unit, long value) {
+		sb.append(prefix).append(name).append(',').append(unit)
+			.append(',').append(value).append(",,,,,,,\n");
+	}
+}
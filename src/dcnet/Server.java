@@ -1,10 +1,13 @@
 package dcnet;
 
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileWriter;
 import java.io.BufferedWriter;
 import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.net.InetSocketAddress;
@@ -12,8 +15,19 @@ import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.UnknownHostException;
 import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Properties;
 import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.zip.CRC32;
@@ -21,6 +35,7 @@ import java.util.zip.CRC32;
 import scheduler.ServerScheduler;
 import scheduler.SlotUtils;
 
+import scheduler.control.LengthReservingControlSlot;
 import scheduler.control.PruningBinaryControlSlot;
 import scheduler.control.BinaryControlSlot;
 import scheduler.control.DummyControlSlot;
@@ -32,58 +47,182 @@ public class Server extends Base {
 	public static final int CLIENT_PORT = 9495;
 	public static final int SERVER_PORT = 6566;
 
+	private static final String PROP_PAD_DEPTH = "server.padBufferBlocks";
+	private static final String PROP_PAD_THREADS = "server.padThreads";
+	private static final String PROP_SELECTOR_READ = "server.selectorRead";
+	private static final String PROP_REDUCE_THREADS = "server.reduceThreads";
+	private static final String PROP_COMBINE = "server.combine";
+	private static final String PROP_METRICS = "server.metrics";
+	private static final String PROP_METRICS_DIR = "server.metricsDir";
+	private static final String PROP_METRICS_PORT = "server.metricsPort";
+	private static final String PROP_OUTPUT = "server.output";
+	private static final String PROP_ARCHIVE = "server.archive";
+	private static final String PROP_HANDSHAKE_TIMEOUT = "server.handshakeTimeout";
+	private static final String PROP_BOOTSTRAP_DEADLINE = "server.bootstrapDeadline";
+	private static final String PROP_BOOTSTRAP_QUORUM = "server.bootstrapQuorum";
+
 	private int id, numClients, numServers;
+	private ClientAssignment assignment;
 	private SlotCipher cipher;
+	private int padDepth, padThreads;
 	private ServerScheduler scheduler;
 
-	private Socket[] clientSockets;
-	private Socket[] serverSockets;
+	private Connection[] clientConnections;
+	private Connection[] serverConnections;
+
+	// Non-null when combining with the other servers in a ring.
+	private ServerRing serverRing;
+	private String combineTopology;
+
+	// Non-null when client traffic is driven by a Selector.
+	private ParallelChannelGroup clientGroup;
+	private boolean selectorRead;
 
 	private Logger logger;
 
+	// Buffers re-used from slot to slot and round to round, so
+	// that the round loop itself doesn't allocate.
+	private byte[] slotBuffer;
+	private byte[] dataBuffer;
+	private byte[][] controlBuffers = new byte[2][];
+	private byte[] controlScratch;
+	private byte[] batchBuffer, batchScratch;
+	private byte[] tailBuffer, tailScratch;
+	private int[] batchOffsets;
+
+	// Works out control slot results while data slots run.
+	private ExecutorService controlWorker;
+
+	private SlotUtils.SlotMetadata meta = new SlotUtils.SlotMetadata();
+	private DownstreamFrame downstream = new DownstreamFrame();
+	private SlotStore slotOutputs = new SlotStore();
+
+	// Writes valid slots out as they're decoded, if enabled.
+	private boolean outputEnabled;
+	private OutputSink output;
+
+	// Appends each round's valid slots to a binary archive, if
+	// given a file to do it in ("%d" is replaced by our id).
+	private String archiveFile;
+	private RoundArchive archive;
+	private int[] attemptsUsed = new int[0];
+
+	// Running statistics of the current round's data slots.
+	private int bytes, collisionSlots, emptySlots;
+	private long downstreamBytes;
+
+	// Client ciphertext taken in over the whole run, and the time
+	// it took, as a measure of this server's capacity for clients.
+	private long gatheredBytes, gatherNanos;
+	private long dataStart;
+
+	// Slots still to be run, when retrying collisions.
+	private int[] pendingSlots = new int[0];
+
+	// Per-phase timings of the current round, and where to
+	// send them once it's done: any of "json" and "csv" files
+	// (comma separated), and/or an HTTP endpoint on the given
+	// port plus our id.
+	private RoundMetrics metrics;
+	private String metricsFormats;
+	private String metricsDir;
+	private int metricsPort;
+	private BufferedWriter metricsJson, metricsCsv;
+	private MetricsEndpoint metricsEndpoint;
+
 	public Server(Properties properties, int id, int numClients, int numServers) {
 		super(properties);
 
 		this.id = id;
 		this.numClients = numClients;
 		this.numServers = numServers;
+		this.assignment = new ClientAssignment(properties.getProperty(PROP_DCNET_WEIGHTS), numServers);
 
 		double[] params = BloomFilter.getParameterEstimate(estimatedElementsPerRound, fpr);
 		int slotCount = (int) params[0];
 
 		this.scheduler = new ServerScheduler(slotCount);
 
-		this.cipher = new SlotCipher(getSecrets());
+		this.padDepth = Integer.valueOf(properties.getProperty(PROP_PAD_DEPTH, "64"));
+		this.padThreads = Integer.valueOf(properties.getProperty(PROP_PAD_THREADS,
+					Integer.toString(Runtime.getRuntime().availableProcessors())));
+		this.cipher = newCipher(getSecrets(null));
+		this.selectorRead = Boolean.valueOf(properties.getProperty(PROP_SELECTOR_READ, "true"));
+		this.combineTopology = properties.getProperty(PROP_COMBINE, "all");
+		this.metrics = new RoundMetrics(id);
+		this.metricsFormats = properties.getProperty(PROP_METRICS, "");
+		this.metricsDir = properties.getProperty(PROP_METRICS_DIR, "run/metrics");
+		this.metricsPort = Integer.valueOf(properties.getProperty(PROP_METRICS_PORT, "0"));
+		this.outputEnabled = Boolean.valueOf(properties.getProperty(PROP_OUTPUT, "false"));
+		this.archiveFile = properties.getProperty(PROP_ARCHIVE, "");
+
+		this.slotBuffer = new byte[defaultSlotLength];
+		this.dataBuffer = new byte[defaultSlotLength];
+		this.batchBuffer = new byte[batchSize * defaultSlotLength];
+		this.batchScratch = new byte[batchBuffer.length];
+		this.batchOffsets = new int[batchSize + 1];
+		this.controlWorker = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "control-slot");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
 		this.logger = Logger.getGlobal();
 	}
 
+	/**
+	 * Precompute the combined pad in the background unless
+	 * explicitly disabled by asking for zero blocks. Only the
+	 * sequential keystreams are worth precomputing this way; the
+	 * counter-mode pads, and the sequential ones with no blocks,
+	 * are instead split over padThreads as they're asked for.
+	 */
+	private SlotCipher newCipher(long[] secrets) {
+		if (counterCipher) {
+			return new CounterSlotCipher(secrets, padThreads);
+		} else if (padDepth > 0) {
+			PrecomputedSlotCipher precomputed = new PrecomputedSlotCipher(secrets,
+					defaultSlotLength, padDepth, padThreads);
+			precomputed.start();
+			return precomputed;
+		} else {
+			return new ParallelSlotCipher(secrets, padThreads);
+		}
+	}
+
 	public void initializeConnections() throws IOException {
+		final long bootstrapStart = System.currentTimeMillis();
 		// Start listening for incoming connections.
-		ServerSocket serverSocket;
-		ServerSocket clientSocket;
+		Transport.Listener serverListener;
+		Transport.Listener clientListener;
 		try {
 			// The other servers connect to us here.
-			serverSocket = new ServerSocket();
-			serverSocket.setReuseAddress(true);
-			serverSocket.bind(new InetSocketAddress(SERVER_PORT + id));
+			serverListener = transport.listen(SERVER_PORT + id);
 
 			// And clients connect to us here.
-			clientSocket = new ServerSocket();
-			clientSocket.setReuseAddress(true);
-			clientSocket.bind(new InetSocketAddress(CLIENT_PORT + id));
+			clientListener = transport.listen(CLIENT_PORT + id);
 		} catch (IOException e) {
 			logger.severe("Exception creating listening sockets.");
 			throw e;
 		}
 
-		// Initialize all server connections first:
+		// Start taking clients while the servers link up.
+		ClientBootstrap bootstrap = new ClientBootstrap(clientListener, numClients, assignment, id,
+				Integer.valueOf(properties.getProperty(PROP_HANDSHAKE_TIMEOUT, "10000")));
+		bootstrap.start();
+
+		// Meanwhile, link up with the other servers:
 		// 	- Connect to servers with a id greater than ours.
-		serverSockets = new Socket[numServers - 1];
+		serverConnections = new Connection[numServers - 1];
 		for (int i = 0; i < id; i++) {
 			try {
 				String server = (servers == null) ? "localhost" : servers[i];
-				Socket socket = new Socket(server, SERVER_PORT + i);
-				serverSockets[i] = socket;
+				Connection connection = transport.connect(server, SERVER_PORT + i);
+				serverConnections[i] = connection;
+
+				// Say who we are, since accept order doesn't.
+				new DataOutputStream(connection.getOutputStream()).writeInt(id);
 			} catch (UnknownHostException e) {
 				logger.severe("Unknown server host.");
 				throw e;
@@ -92,8 +231,12 @@ public class Server extends Base {
 		//  - Wait for connections from those with lesser id.
 		for (int i = id + 1; i < numServers; i++) {
 			try {
-				Socket socket = serverSocket.accept();
-				serverSockets[i - 1] = socket;
+				Connection connection = serverListener.accept();
+				int peer = new DataInputStream(connection.getInputStream()).readInt();
+				if (peer <= id || peer >= numServers || serverConnections[peer - 1] != null) {
+					throw new IOException(String.format("Unexpected server id %d.", peer));
+				}
+				serverConnections[peer - 1] = connection;
 			} catch (IOException e) {
 				logger.severe("Exception accepting server connection.");
 				throw e;
@@ -103,154 +246,663 @@ public class Server extends Base {
 			String fmt =  "All (%d) servers connected.";
 			logger.info(String.format(fmt, numServers - 1));
 		}
+		if ("ring".equals(combineTopology)) {
+			final int next = (id + 1) % numServers;
+			final int prev = (id + numServers - 1) % numServers;
+			serverRing = new ServerRing(id, numServers, getServerConnection(next), getServerConnection(prev));
+		}
 
-		// For now assumes we know how many clients to expect;
-		// wait for them all to connect before proceeding.
+		// Then wait for our clients, which have been connecting
+		// all along: all of them, or, past the deadline, enough.
 		final int connectingClients = connectingClients();
-		clientSockets = new Socket[connectingClients];
-		for (int i = 0; i < connectingClients; i++) {
-			if ((i > 0) && (i % 5 == 0)) {
-				String fmt = "%d/%d clients connected.";
-				logger.info(String.format(fmt,i, connectingClients));
+		final int quorum = (int) Math.ceil(connectingClients * Double.valueOf(
+					properties.getProperty(PROP_BOOTSTRAP_QUORUM, "1.0")));
+		final long deadline = Long.valueOf(properties.getProperty(PROP_BOOTSTRAP_DEADLINE, "0"));
+		TreeMap<Integer, Connection> clients = bootstrap.await(connectingClients, quorum,
+				(deadline > 0) ? bootstrapStart + deadline : 0);
+		serverListener.close();
+
+		clientConnections = clients.values().toArray(new Connection[clients.size()]);
+		{ // Enough clients successfully connected.
+			String fmt =  "%d/%d clients (%.1f%% share) connected in %d ms.";
+			logger.info(String.format(fmt, clientConnections.length, connectingClients,
+						100 * assignment.getShare(id), System.currentTimeMillis() - bootstrapStart));
+		}
+		agreeOnClients(clients.keySet());
+
+		// Only TCP connections accepted through a channel can
+		// be driven by a Selector.
+		SocketChannel[] clientChannels = new SocketChannel[clientConnections.length];
+		for (int i = 0; i < clientConnections.length; i++) {
+			if (clientConnections[i] instanceof TcpTransport.TcpConnection) {
+				clientChannels[i] = ((TcpTransport.TcpConnection) clientConnections[i]).getChannel();
 			}
-			try {
-				Socket socket = clientSocket.accept();
-				clientSockets[i] = socket;
-			} catch (IOException e) {
-				logger.severe("Exception accepting client connection.");
-				throw e;
+			if (clientChannels[i] == null) {
+				selectorRead = false;
 			}
 		}
-		{ // All clients successfully connected.
-			String fmt =  "All (%d) clients connected.";
-			logger.info(String.format(fmt, connectingClients));
+		if (selectorRead) {
+			final int threads = Integer.valueOf(properties.getProperty(PROP_REDUCE_THREADS,
+						Integer.toString(Runtime.getRuntime().availableProcessors())));
+			clientGroup = new ParallelChannelGroup(threads, clientChannels);
+			clientGroup.setReadLatency(metrics.clientRead);
+			String fmt = "Reading clients in %d groups.";
+			logger.info(String.format(fmt, clientGroup.getGroupCount()));
 		}
 	}
 
-	private void startProtocolRound() throws IOException {
-		ControlSlot controlSlot;
-		if (controlSlotType) {
-			controlSlot = new PruningBinaryControlSlot(scheduler, attemptsPerSlot);
+	/**
+	 * Tell the other servers which of our clients showed up, and
+	 * hear which of theirs did. If anyone's missing, nobody can
+	 * include pads for them, since they won't be cancelled out.
+	 */
+	private void agreeOnClients(Set<Integer> ours) throws IOException {
+		final byte[] present = new byte[(numClients + 7) / 8];
+		for (int client : ours) {
+			present[client >>> 3] |= 1 << (client & 7);
+		}
+		if (serverConnections.length > 0) {
+			// Small enough to go out before anything's read back.
+			SocketUtils.write(present, serverConnections);
+			final byte[] theirs = new byte[present.length];
+			for (Connection connection : serverConnections) {
+				SocketUtils.readFully(connection.getInputStream(), theirs);
+				for (int i = 0; i < present.length; i++) {
+					present[i] |= theirs[i];
+				}
+			}
+		}
+
+		final BitSet everyone = BitSet.valueOf(present);
+		final int absent = numClients - everyone.cardinality();
+		if (absent > 0) {
+			String fmt = "Running without %d absent clients.";
+			logger.warning(String.format(fmt, absent));
+			cipher.close();
+			cipher = newCipher(getSecrets(everyone));
+		}
+	}
+
+	/**
+	 * Read length bytes of ciphertext from every client and XOR
+	 * it all into the start of buffer.
+	 */
+	private void readClients(byte[] buffer, int length, byte[] scratch) throws IOException {
+		final long start = System.nanoTime();
+		if (clientGroup != null) {
+			clientGroup.read(buffer, length);
 		} else {
-			controlSlot = new DummyControlSlot(scheduler, attemptsPerSlot);
+			for (Connection connection : clientConnections) {
+				SocketUtils.readXor(connection, buffer, 0, length, scratch);
+				metrics.clientRead.record(System.nanoTime() - start);
+			}
 		}
+		gatheredBytes += (long) length * clientConnections.length;
+		gatherNanos += System.nanoTime() - start;
+	}
 
-		long controlSlotStart = System.currentTimeMillis();
+	/**
+	 * Combine our aggregate ciphertext in the first length bytes
+	 * of buffer with those of all the other servers, leaving the
+	 * plaintext in its place.
+	 */
+	private void combineServers(byte[] buffer, int length, byte[] scratch) throws IOException {
+		if (serverRing != null) {
+			serverRing.allReduce(buffer, length);
+		} else {
+			SocketUtils.exchange(buffer, length, scratch, serverConnections);
+		}
+	}
 
-		final int controlSlotLength = controlSlot.getLength();
-		if (controlSlotLength > 0) {
-			final byte[] dataBuffer = new byte[controlSlotLength];
-			final byte[] slotBuffer = new byte[controlSlotLength];
+	/**
+	 * Get the buffer for a batch of count slots. All but the
+	 * last batch of a round are full size; the last one usually
+	 * has the same length from round to round, so keep it too.
+	 */
+	private byte[] getBatchBuffer(int count) {
+		if (count == batchSize) {
+			return batchBuffer;
+		}
+		if (tailBuffer == null || tailBuffer.length != count * defaultSlotLength) {
+			tailBuffer = new byte[count * defaultSlotLength];
+			tailScratch = new byte[tailBuffer.length];
+		}
+		return tailBuffer;
+	}
 
-			SocketUtils.read(slotBuffer, dataBuffer, clientSockets);
-			cipher.xorKeyStream(slotBuffer);
+	private byte[] getBatchScratch(int count) {
+		return (count == batchSize) ? batchScratch : tailScratch;
+	}
 
-			SocketUtils.write(slotBuffer, serverSockets);
-			SocketUtils.read(slotBuffer, dataBuffer, serverSockets);
+	private Connection getServerConnection(int server) {
+		return (server < id) ? serverConnections[server] : serverConnections[server - 1];
+	}
 
-			controlSlot.setResult(slotBuffer);
-			SocketUtils.write(slotBuffer, clientSockets);
+	/**
+	 * Send the clients the outcome of the slots just decoded:
+	 * the frame built up in downstream, or, if that's turned off,
+	 * the first length bytes of buffer, their whole plaintext.
+	 */
+	private void writeDownstream(byte[] buffer, int length) throws IOException {
+		if (compactDownstream) {
+			buffer = downstream.getBuffer();
+			length = downstream.getLength();
 		}
+		downstreamBytes += length;
+		writeClients(buffer, length);
+	}
 
-		long controlSlotEnd = System.currentTimeMillis();
+	private void writeClients(byte[] buffer, int length) throws IOException {
+		if (clientGroup != null) {
+			clientGroup.write(buffer, length);
+		} else {
+			SocketUtils.write(buffer, length, clientConnections);
+		}
+	}
 
-		final int slotCount = controlSlot.getSlotCount();
-		final int attempts = controlSlot.getAttempts();
+	/**
+	 * @return the number of bytes sent for the index-th slot
+	 */
+	private int getSlotLength(ControlSlot controlSlot, int index) {
+		final int reserved = controlSlot.getReservedLength(index);
+		return (reserved > 0) ? reserved : defaultSlotLength;
+	}
 
-		// Record all the transmitted slots for output later.
-		byte[][] slotOutputs = new byte[slotCount][];
+	/**
+	 * Run rounds back to back over the existing connections,
+	 * or forever if rounds is less than one. Each round's
+	 * control slot is collected from the clients before the
+	 * previous round's data slots, and its result is worked out
+	 * in the background while they run, so only the download of
+	 * the (already computed) result sits between rounds.
+	 */
+	public void run(int rounds) throws IOException {
+		final long runStart = System.currentTimeMillis();
 
-		// Simple statistics, to make sure it's working.
-		int bytes = 0;
-		int collisionSlots = 0;
-		int emptySlots = slotCount;
+		int completed;
+		openMetrics();
+		try {
+			openOutput();
+			if (!archiveFile.isEmpty()) {
+				File file = new File(String.format(archiveFile, id));
+				if (file.getParentFile() != null) {
+					file.getParentFile().mkdirs();
+				}
+				archive = new RoundArchive(file.getPath());
+				String fmt = "Archiving to %s from round %d.";
+				logger.info(String.format(fmt, file.getPath(), archive.getNextRound()));
+			}
+			completed = runRounds(rounds);
+		} finally {
+			try {
+				closeOutput();
+			} finally {
+				closeMetrics();
+			}
+			if (archive != null) {
+				archive.close();
+				archive = null;
+			}
+		}
+
+		{ // Overall throughput.
+			long elapsed = System.currentTimeMillis() - runStart;
+			String fmt = "rounds=%d, time=%d ms, %f rounds/sec";
+			logger.info(String.format(fmt, completed, elapsed, 1000 * (completed / (double) elapsed)));
+		}
+		{ // What to weight this server by, next run.
+			String fmt = "capacity: %.1f MB/s from %d clients, a guide for dcnet.serverWeights.";
+			logger.info(String.format(fmt, gatheredBytes / (gatherNanos / 1e3 + 1),
+						clientConnections.length));
+		}
+	}
 
-		int[] attemptsUsed = new int[slotCount];
+	/**
+	 * @return the number of rounds run
+	 */
+	private int runRounds(int rounds) throws IOException {
+		metrics.begin(0);
+
+		ControlSlot controlSlot = newControlSlot();
+		byte[] controlResult = collectControlSlot(controlSlot, 0);
+		if (controlResult != null) {
+			controlSlot.setResult(controlResult);
+			writeClients(controlResult, controlResult.length);
+		}
 
-		// When the round started, used for periodic reporting.
-		long first = System.currentTimeMillis();
+		int round;
+		for (round = 0; rounds < 1 || round < rounds; round++) {
+			final boolean hasNext = rounds < 1 || round + 1 < rounds;
+			final long roundStart = System.currentTimeMillis();
+
+			// Get the next round's control slot under way first.
+			ControlSlot nextSlot = null;
+			byte[] nextResult = null;
+			Future<?> pendingResult = null;
+			if (hasNext) {
+				nextSlot = newControlSlot();
+				nextResult = collectControlSlot(nextSlot, round + 1);
+				if (nextResult != null) {
+					pendingResult = setResultLater(nextSlot, nextResult);
+				}
+			}
+			final long controlEnd = System.currentTimeMillis();
+
+			runDataSlots(round, controlSlot, controlEnd - roundStart);
+			final long dataEnd = System.currentTimeMillis();
+
+			// Then hand the clients the next round's schedule.
+			if (pendingResult != null) {
+				awaitResult(pendingResult);
+			}
+			final long resultReady = System.currentTimeMillis();
+			if (nextResult != null) {
+				writeClients(nextResult, nextResult.length);
+			}
+			if (archive != null) {
+				archiveRound(controlSlot.getSlotCount());
+			}
+			final long roundEnd = System.currentTimeMillis();
+
+			String fmt = "round %d: control=%d ms, data=%d ms, result=%d ms (waited %d ms), total=%d ms";
+			logger.info(String.format(fmt, round, controlEnd - roundStart, dataEnd - controlEnd,
+						roundEnd - dataEnd, resultReady - dataEnd, roundEnd - roundStart));
+
+			metrics.end();
+			exportMetrics();
+			metrics.begin(round + 1);
+
+			controlSlot = nextSlot;
+		}
+		return round;
+	}
+
+	private void openMetrics() throws IOException {
+		for (String format : metricsFormats.split(",")) {
+			format = format.trim();
+			if (format.isEmpty()) {
+				continue;
+			}
+			new File(metricsDir).mkdirs();
+			String file = String.format("%s/%d.%s", metricsDir, id, format);
+			if ("json".equals(format)) {
+				metricsJson = new BufferedWriter(new FileWriter(file));
+			} else if ("csv".equals(format)) {
+				metricsCsv = new BufferedWriter(new FileWriter(file));
+				metricsCsv.write(RoundMetrics.CSV_HEADER);
+				metricsCsv.newLine();
+			} else {
+				logger.warning(String.format("Unknown metrics format '%s'.", format));
+			}
+		}
+		if (metricsPort > 0) {
+			metricsEndpoint = new MetricsEndpoint(metricsPort + id);
+			metricsEndpoint.start();
+		}
+	}
+
+	/**
+	 * Write out the metrics of the round just finished, as one
+	 * JSON line and/or a few CSV rows, and serve them until the
+	 * next one's done.
+	 */
+	private void exportMetrics() throws IOException {
+		if (metricsJson != null) {
+			metricsJson.write(metrics.toJson());
+			metricsJson.newLine();
+			metricsJson.flush();
+		}
+		if (metricsCsv != null) {
+			metricsCsv.write(metrics.toCsv());
+			metricsCsv.flush();
+		}
+		if (metricsEndpoint != null) {
+			metricsEndpoint.publish(metrics);
+		}
+	}
+
+	private void closeMetrics() throws IOException {
+		if (metricsEndpoint != null) {
+			metricsEndpoint.stop();
+			metricsEndpoint = null;
+		}
+		if (metricsJson != null) {
+			metricsJson.close();
+			metricsJson = null;
+		}
+		if (metricsCsv != null) {
+			metricsCsv.close();
+			metricsCsv = null;
+		}
+	}
+
+	/**
+	 * Start the output file, named so as not to clash with that of
+	 * a client with the same id. Slots go in in the order they're
+	 * decoded, which puts any that needed retries after the rest.
+	 */
+	private void openOutput() throws IOException {
+		if (outputEnabled) {
+			new File("run/output").mkdirs();
+			output = new OutputSink(String.format("run/output/server-%d.csv", id),
+					false, outputQueueLength);
+			output.setStallLatency(metrics.outputStall);
+		}
+	}
 
-		// Scratch space for slot data - re-used as needed.
-		byte[] dataBuffer = new byte[defaultSlotLength];
+	private void closeOutput() throws IOException {
+		if (output != null) {
+			final OutputSink closing = output;
+			output = null;
+			closing.close();
+		}
+	}
 
+	/**
+	 * Append the valid slots of the round just run to the archive,
+	 * once the clients have what they need to carry on. The archive
+	 * numbers the rounds itself, carrying on from earlier runs.
+	 */
+	private void archiveRound(int slotCount) throws IOException {
+		archive.beginRound();
 		for (int i = 0; i < slotCount; i++) {
-			// Periodic debug/performance statistics.
-			final int sampleInterval = 10;
-			if (i % sampleInterval == 0) {
-				long elapsed = System.currentTimeMillis() - first;
-				double rate = 1000 * ((double) i / elapsed);
+			if (slotOutputs.has(i)) {
+				final byte[] slot = slotOutputs.get(i, dataBuffer);
+				final int length = Math.min(SlotUtils.getLength(slot),
+						slot.length - SlotUtils.METADATA_BYTES);
+				archive.add(i, attemptsUsed[i] - 1, SlotUtils.getChecksum(slot, 0),
+						slot, SlotUtils.METADATA_BYTES, length);
+			}
+		}
+		archive.endRound();
+	}
+
+	/**
+	 * Queue a copy of a valid slot for the output file.
+	 */
+	private void writeOutput(byte[] buffer, int offset, int length) throws IOException {
+		if (output != null) {
+			output.write(Arrays.copyOfRange(buffer, offset, offset + length));
+		}
+	}
+
+	private ControlSlot newControlSlot() {
+		if (controlSlotType && reserveLengths) {
+			return new LengthReservingControlSlot(scheduler, attemptsPerSlot, defaultSlotLength);
+		} else if (controlSlotType) {
+			return new PruningBinaryControlSlot(scheduler, attemptsPerSlot);
+		} else {
+			return new DummyControlSlot(scheduler, attemptsPerSlot);
+		}
+	}
+
+	/**
+	 * Gather a round's control slot from the clients and combine
+	 * it with the other servers.
+	 * @return the combined control slot, or null if it's empty;
+	 * valid until the control slot two rounds on is collected
+	 */
+	private byte[] collectControlSlot(ControlSlot controlSlot, int round) throws IOException {
+		final int controlSlotLength = controlSlot.getLength();
+		if (controlSlotLength == 0) {
+			return null;
+		}
+		final long start = System.nanoTime();
+
+		// Alternate buffers, since one round's result is still
+		// waiting to go out when the next round's comes in.
+		final int parity = round & 1;
+		if (controlBuffers[parity] == null || controlBuffers[parity].length != controlSlotLength) {
+			controlBuffers[parity] = new byte[controlSlotLength];
+			controlScratch = new byte[controlSlotLength];
+		}
+		final byte[] slotBuffer = controlBuffers[parity];
+		Arrays.fill(slotBuffer, (byte) 0);
+
+		readClients(slotBuffer, controlSlotLength, controlScratch);
+		cipher.xorKeyStream(slotBuffer, round, SlotCipher.CONTROL_SLOT, 0);
+
+		combineServers(slotBuffer, controlSlotLength, controlScratch);
+		metrics.control.record(System.nanoTime() - start);
+		return slotBuffer;
+	}
+
+	private Future<?> setResultLater(final ControlSlot controlSlot, final byte[] result) {
+		return controlWorker.submit(new Runnable() {
+			public void run() {
+				controlSlot.setResult(result);
+			}
+		});
+	}
+
+	private void awaitResult(Future<?> pending) throws IOException {
+		try {
+			pending.get();
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException("interrupted waiting for control slot");
+		} catch (ExecutionException e) {
+			throw new IOException("error processing control slot", e.getCause());
+		}
+	}
+
+	/**
+	 * Run the first count of the given slots through in batches,
+	 * all as the same attempt. The first attempt at each slot
+	 * goes at its reserved length; retries go at the default
+	 * length, since the reservation was made by the colliders.
+	 * @return the number of slots that need another attempt, if
+	 * retrying (collisions, plus retries nobody answered), which
+	 * are moved to the front of slots
+	 */
+	private int runBatches(int round, int attempt, ControlSlot controlSlot, int[] slots, int count)
+			throws IOException {
+		final SlotUtils.SlotMetadata meta = this.meta;
+		final boolean sampling = logger.isLoggable(Level.FINE);
+		final boolean retrying = retrySubRounds > 0;
+
+		int pending = 0;
+		for (int start = 0; start < count; start += batchSize) {
+			final int batchCount = Math.min(batchSize, count - start);
+			final byte[] batch = getBatchBuffer(batchCount);
+			final byte[] scratch = getBatchScratch(batchCount);
+
+			if (sampling) { // Periodic debug/performance statistics.
+				long elapsed = System.currentTimeMillis() - dataStart;
+				double rate = 1000 * ((double) start / elapsed);
 
 				String fmt = "Slot #%d: %f slots/sec.";
-				logger.log(Level.FINE, String.format(fmt, i, rate));
+				logger.log(Level.FINE, String.format(fmt, start, rate));
 			}
 
-			// Start off assuming slot is going to be empty.
-			boolean slotEmpty = true;
-			boolean collision = false;
-
-			int j;
-			for (j = 0; j < attempts; j++) {
-				// Keeps the running total, initially XOR of secrets.
-				byte[] slotBuffer = new byte[defaultSlotLength];
-				cipher.xorKeyStream(slotBuffer);
-
-				// Get ciphertexts from all connected clients.
-				SocketUtils.read(slotBuffer, dataBuffer, clientSockets);
-
-				// Send our aggregate ciphertext to the other servers.
-				// Get the other servers' aggregate ciphertexts.
-				SocketUtils.write(slotBuffer, serverSockets);
-				SocketUtils.read(slotBuffer, dataBuffer, serverSockets);
-
-				// slotBuffer should now contain the plaintext. Do some
-				// sanity checking on it, simplistically for now, and
-				// then stash it away for writing out later.
-				SlotUtils.SlotMetadata meta = SlotUtils.decode(slotBuffer);
-				if (!meta.isEmpty) {
+			// Lay the slots out back to back, each at its own
+			// length, which is at most the default.
+			final int[] offsets = batchOffsets;
+			for (int k = 0; k < batchCount; k++) {
+				final int slotLength = (attempt == 0)
+					? getSlotLength(controlSlot, slots[start + k]) : defaultSlotLength;
+				offsets[k + 1] = offsets[k] + slotLength;
+			}
+			final int length = offsets[batchCount];
+
+			// Start the batch off with the XOR of our secrets.
+			long t0 = System.nanoTime();
+			Arrays.fill(batch, 0, length, (byte) 0);
+			for (int k = 0; k < batchCount; k++) {
+				cipher.xorKeyStream(batch, offsets[k], offsets[k + 1] - offsets[k],
+						round, slots[start + k], attempt);
+			}
+			long t1 = System.nanoTime();
+			metrics.cipher.record(t1 - t0);
+
+			readClients(batch, length, scratch);
+			t0 = System.nanoTime();
+			metrics.clientGather.record(t0 - t1);
+
+			combineServers(batch, length, scratch);
+			t1 = System.nanoTime();
+			metrics.serverExchange.record(t1 - t0);
+
+			downstream.reset();
+			for (int k = 0; k < batchCount; k++) {
+				final int i = slots[start + k];
+				final int offset = offsets[k];
+				final int slotLength = offsets[k + 1] - offset;
+
+				SlotUtils.decode(batch, offset, slotLength, meta);
+				downstream.add(batch, offset, slotLength, meta);
+				if (meta.isValid) {
+					slotOutputs.put(i, batch, offset, slotLength);
+					writeOutput(batch, offset, slotLength);
+				} else if (retrying && (attempt > 0 || !meta.isEmpty)) {
+					// Never overtakes the batch being read.
+					slots[pending++] = i;
+				}
+				if (attempt == 0 && !meta.isEmpty) {
 					if (!meta.isValid) {
 						logger.warning(String.format("Collision in slot %d.", i));
-						collision = true;
-					} else if (slotEmpty) {
-						slotOutputs[i] = slotBuffer;
+						collisionSlots++;
 					}
-					slotEmpty = false;
+					emptySlots--;
 				}
+				attemptsUsed[i] = attempt + 1;
+			}
+			bytes += length;
+			t0 = System.nanoTime();
+			metrics.decode.record(t0 - t1);
 
-				bytes += slotBuffer.length;
+			writeDownstream(batch, length);
+			metrics.broadcast.record(System.nanoTime() - t0);
+		}
+		return pending;
+	}
 
-				// Send the plaintext back down to the clients, if needed.
-				if (true) {
-					SocketUtils.write(slotBuffer, clientSockets);
-				}
-				if (!slotEmpty) {
-					j++;
-					break;
-				}
-			}
+	/**
+	 * Run the data slots of a round, as scheduled by its (now
+	 * complete) control slot.
+	 */
+	private void runDataSlots(int round, ControlSlot controlSlot, long controlTime) throws IOException {
+		final int slotCount = controlSlot.getSlotCount();
+		final int attempts = controlSlot.getAttempts();
 
-			attemptsUsed[i] = j;
+		// Record all the transmitted slots for output later.
+		slotOutputs.reset(slotCount, defaultSlotLength);
+
+		// Simple statistics, to make sure it's working.
+		bytes = 0;
+		downstreamBytes = 0;
+		collisionSlots = 0;
+		emptySlots = slotCount;
 
-			// Adjust the count of empty slots and collision slots.
-			emptySlots -= slotEmpty ? 0 : 1;
-			collisionSlots += collision ? 1 : 0;
+		if (attemptsUsed.length < slotCount) {
+			attemptsUsed = new int[slotCount];
 		}
 
-		// Write the output of the round to a file for analysis.
-		if (false) {
-			String outputFile = String.format("run/output/%d.csv", id);
-			try (
-				FileWriter fw = new FileWriter(outputFile);
-				BufferedWriter bw = new BufferedWriter(fw);
-			) {
-				for (byte[] slot : slotOutputs) {
-					if (slot != null) {
-						bw.write(SlotUtils.toString(slot));
-						bw.newLine();
+		// When the round started, used for periodic reporting.
+		long first = System.currentTimeMillis();
+		dataStart = first;
+		final boolean sampling = logger.isLoggable(Level.FINE);
+
+		final SlotUtils.SlotMetadata meta = this.meta;
+
+		if (retrySubRounds > 0 || (batchSize > 1 && attempts == 1)) {
+			// Nobody needs to see a slot's result before sending the
+			// next one, so stream the round through in batches.
+			if (pendingSlots.length < slotCount) {
+				pendingSlots = new int[slotCount];
+			}
+			for (int i = 0; i < slotCount; i++) {
+				pendingSlots[i] = i;
+			}
+			int pending = runBatches(round, 0, controlSlot, pendingSlots, slotCount);
+
+			// Then re-run whatever collided, all together, until it's
+			// all sorted out or we run out of sub-rounds.
+			final int collided = pending;
+			int subRound = 0;
+			while (pending > 0 && subRound < retrySubRounds) {
+				subRound++;
+				pending = runBatches(round, subRound, controlSlot, pendingSlots, pending);
+			}
+			if (collided > 0 && retrySubRounds > 0) {
+				String fmt = "retries: sub-rounds=%d, collided=%d, unresolved=%d";
+				logger.info(String.format(fmt, subRound, collided, pending));
+			}
+		} else {
+			for (int i = 0; i < slotCount; i++) {
+				// Periodic debug/performance statistics.
+				final int sampleInterval = 10;
+				if (sampling && i % sampleInterval == 0) {
+					long elapsed = System.currentTimeMillis() - first;
+					double rate = 1000 * ((double) i / elapsed);
+
+					String fmt = "Slot #%d: %f slots/sec.";
+					logger.log(Level.FINE, String.format(fmt, i, rate));
+				}
+
+				// Start off assuming slot is going to be empty.
+				boolean slotEmpty = true;
+				boolean collision = false;
+
+				final int slotLength = getSlotLength(controlSlot, i);
+
+				int j;
+				for (j = 0; j < attempts; j++) {
+					// Keeps the running total, initially XOR of secrets.
+					final byte[] slotBuffer = this.slotBuffer;
+					long t0 = System.nanoTime();
+					Arrays.fill(slotBuffer, 0, slotLength, (byte) 0);
+					cipher.xorKeyStream(slotBuffer, 0, slotLength, round, i, j);
+					long t1 = System.nanoTime();
+					metrics.cipher.record(t1 - t0);
+
+					// Get ciphertexts from all connected clients.
+					readClients(slotBuffer, slotLength, dataBuffer);
+					t0 = System.nanoTime();
+					metrics.clientGather.record(t0 - t1);
+
+					// Send our aggregate ciphertext to the other servers.
+					// Get the other servers' aggregate ciphertexts.
+					combineServers(slotBuffer, slotLength, dataBuffer);
+					t1 = System.nanoTime();
+					metrics.serverExchange.record(t1 - t0);
+
+					// slotBuffer should now contain the plaintext. Do some
+					// sanity checking on it, simplistically for now, and
+					// then stash it away for writing out later.
+					SlotUtils.decode(slotBuffer, 0, slotLength, meta);
+					downstream.reset();
+					downstream.add(slotBuffer, 0, slotLength, meta);
+					if (!meta.isEmpty) {
+						if (!meta.isValid) {
+							logger.warning(String.format("Collision in slot %d.", i));
+							collision = true;
+						} else if (slotEmpty) {
+							slotOutputs.put(i, slotBuffer, 0, slotLength);
+							writeOutput(slotBuffer, 0, slotLength);
+						}
+						slotEmpty = false;
+					}
+
+					bytes += slotLength;
+					t0 = System.nanoTime();
+					metrics.decode.record(t0 - t1);
+
+					// Send the plaintext back down to the clients, if needed.
+					if (true) {
+						writeDownstream(slotBuffer, slotLength);
+					}
+					metrics.broadcast.record(System.nanoTime() - t0);
+					if (!slotEmpty) {
+						j++;
+						break;
 					}
 				}
-			} catch (IOException e) {
-				logger.warning("Error writing output to file.");
-				throw e;
+
+				attemptsUsed[i] = j;
+
+				// Adjust the count of empty slots and collision slots.
+				emptySlots -= slotEmpty ? 0 : 1;
+				collisionSlots += collision ? 1 : 0;
 			}
 		}
 
@@ -259,18 +911,36 @@ public class Server extends Base {
 
 			int minAttempts = Integer.MAX_VALUE, maxAttempts = 0;
 			long tally = 0;
-			for (int count : attemptsUsed) {
+			for (int i = 0; i < slotCount; i++) {
+				final int count = attemptsUsed[i];
 				minAttempts = Math.min(count, minAttempts);
 				maxAttempts = Math.max(count, maxAttempts);
 				tally += count;
+				metrics.attempts.record(count);
 			}
+			metrics.setCounts(slotCount, bytes, collisionSlots, emptySlots);
 
 			String fmt = "slots=%d (%d), bytes=%d (%d), time=%d (%d), collisions=%d, empty=%d";
 			logger.info(String.format(fmt, slotCount, scheduler.getSlotCount(),
-						bytes, controlSlot.getLength(), elapsed, controlSlotEnd - controlSlotStart,
+						bytes, controlSlot.getLength(), elapsed, controlTime,
 						collisionSlots, emptySlots));
+			fmt = "downstream: bytes=%d per client (%s)";
+			logger.info(String.format(fmt, downstreamBytes, compactDownstream ? "compact" : "full"));
 			fmt = "attempts: min=%d, max=%d, avg=%f";
 			logger.info(String.format(fmt, minAttempts, maxAttempts, tally / (double) slotCount));
+
+			if (cipher instanceof PrecomputedSlotCipher) {
+				PrecomputedSlotCipher pads = (PrecomputedSlotCipher) cipher;
+				fmt = "pads: blocks=%d, fill=%.1f/%d (min %d), stalls=%d (%d ms)";
+				logger.info(String.format(fmt, pads.getBlocksTaken(), pads.getAverageFill(),
+							pads.getDepth(), pads.getMinFill(), pads.getStalls(),
+							pads.getStallNanos() / 1000000));
+			}
+			if (output != null) {
+				fmt = "output: lines=%d, max queue=%d/%d, stalls=%d (%d ms)";
+				logger.info(String.format(fmt, output.getQueued(), output.getMaxDepth(),
+							outputQueueLength, output.getStalls(), output.getStallNanos() / 1000000));
+			}
 		}
 	}
 
@@ -279,17 +949,21 @@ public class Server extends Base {
 	 * and all clients (not just those connected).
 	 * @return array of secrets, one per client, ordered by id
 	 */
-	private long[] getSecrets() {
-		long[] secrets = new long[numClients];
-		for (int i = 0; i < secrets.length; i++) {
-			secrets[i] = ((long) id << 16) | i;
+	private long[] getSecrets(BitSet clients) {
+		if (clients == null) {
+			clients = new BitSet(numClients);
+			clients.set(0, numClients);
+		}
+		long[] secrets = new long[clients.cardinality()];
+		int n = 0;
+		for (int i = clients.nextSetBit(0); i >= 0 && i < numClients; i = clients.nextSetBit(i + 1)) {
+			secrets[n++] = ((long) id << 16) | i;
 		}
-		return secrets;
+		return Arrays.copyOf(secrets, n);
 	}
 
 	private int connectingClients() {
-		int remainder = numClients % numServers;
-		return (numClients / numServers) + (id < remainder ? 1 : 0);
+		return assignment.getClientCount(id, numClients);
 	}
 
 	public static void main(String[] args) {
@@ -312,7 +986,7 @@ public class Server extends Base {
 		Server server = new Server(properties, id, clients, servers);
 		try {
 			server.initializeConnections();
-			server.startProtocolRound();
+			server.run(server.rounds);
 		} catch (IOException e) {
 			e.printStackTrace();
 			System.exit(1);
@@ -0,0 +1,92 @@
+package dcnet;
+
+import java.io.IOException;
+import java.util.concurrent.Future;
+
+/**
+ * Combines the servers' aggregate ciphertexts by passing slot
+ * partitions around a ring, rather than every server sending
+ * its whole aggregate to every other server. The buffer is cut
+ * into one partition per server: a reduce-scatter leaves each
+ * server with the fully combined version of one partition, and
+ * an allgather then circulates those. Each server sends and
+ * receives about 2 * (S - 1) / S of the buffer in total, no
+ * matter how many servers S there are.
+ */
+public class ServerRing {
+	private int id, size;
+	private Connection next, prev;
+
+	private byte[] scratch = new byte[0];
+
+	/**
+	 * @param id this server's position in the ring
+	 * @param size number of servers in the ring
+	 * @param next connection to server (id + 1) % size
+	 * @param prev connection to server (id - 1) % size
+	 */
+	public ServerRing(int id, int size, Connection next, Connection prev) {
+		this.id = id;
+		this.size = size;
+		this.next = next;
+		this.prev = prev;
+	}
+
+	/**
+	 * Replace buffer with the XOR of every server's buffer.
+	 */
+	public void allReduce(byte[] buffer) throws IOException {
+		allReduce(buffer, buffer.length);
+	}
+
+	/**
+	 * Replace the first length bytes of buffer with the XOR of
+	 * every server's.
+	 */
+	public void allReduce(byte[] buffer, int length) throws IOException {
+		if (size < 2) {
+			return;
+		}
+		if (scratch.length < length) {
+			scratch = new byte[length];
+		}
+
+		// Reduce-scatter: pass each partition along, folding in
+		// our own contribution, until it's seen every server.
+		for (int step = 0; step < size - 1; step++) {
+			final int send = mod(id - step), recv = mod(id - step - 1);
+			transfer(buffer, length, send, recv, true);
+		}
+		// Allgather: now server i holds the finished partition
+		// (i + 1), so pass those around as they are.
+		for (int step = 0; step < size - 1; step++) {
+			final int send = mod(id + 1 - step), recv = mod(id - step);
+			transfer(buffer, length, send, recv, false);
+		}
+	}
+
+	private void transfer(byte[] buffer, int length, int send, int recv, boolean reduce) throws IOException {
+		final int sendFrom = start(send, length);
+		final int sendLength = start(send + 1, length) - sendFrom;
+		final int recvFrom = start(recv, length);
+		final int recvLength = start(recv + 1, length) - recvFrom;
+
+		Future<Void> sent = SocketUtils.writeAsync(buffer, sendFrom, sendLength, next);
+
+		if (reduce) {
+			SocketUtils.readXor(prev, buffer, recvFrom, recvLength, scratch);
+		} else {
+			SocketUtils.readFully(prev.getInputStream(), buffer, recvFrom, recvLength);
+		}
+
+		SocketUtils.await(sent);
+	}
+
+	private int start(int partition, int length) {
+		return (int) ((long) length * partition / size);
+	}
+
+	private int mod(int n) {
+		return ((n % size) + size) % size;
+	}
+}
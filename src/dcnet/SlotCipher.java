@@ -1,7 +1,29 @@
 package dcnet;
 
+import java.util.Arrays;
+
 public class SlotCipher {
-	private XORCipher[] ciphers;
+	/**
+	 * Slot index used to address the control slot's pad.
+	 */
+	public static final int CONTROL_SLOT = -1;
+
+	/**
+	 * Fewest bytes of pad (length times secrets) worth splitting
+	 * over threads, as pads are asked for.
+	 */
+	protected static final long MIN_PARALLEL_BYTES = 64 * 1024;
+
+	protected XORCipher[] ciphers;
+
+	// xorCiphers, as a RangeXor for a RangeSplit.
+	protected final RangeXor cipherRanges = new RangeXor() {
+		public void xorRange(int from, int to, byte[] message, int offset, int length) {
+			xorCiphers(from, to, message, offset, length);
+		}
+	};
+
+	protected SlotCipher() { }
 
 	public SlotCipher(long[] secrets) {
 		ciphers = new XORCipher[secrets.length];
@@ -11,9 +33,229 @@ public class SlotCipher {
 	}
 
 	public byte[] xorKeyStream(byte[] message) {
-		for (XORCipher cipher : ciphers) {
-			cipher.xorKeyStream(message, message);
-		}
+		return xorKeyStream(message, 0, message.length);
+	}
+
+	/**
+	 * XOR the next length bytes of the pad into message, from
+	 * offset on.
+	 */
+	public byte[] xorKeyStream(byte[] message, int offset, int length) {
+		xorCiphers(0, ciphers.length, message, offset, length);
 		return message;
 	}
+
+	/**
+	 * XOR the pad for the given slot and attempt of the given
+	 * round into message. The XORCipher keystreams can't seek,
+	 * so here the address is ignored and the pad is just the
+	 * next part of the stream; everyone has to visit the slots
+	 * in the same order for that to work.
+	 */
+	public byte[] xorKeyStream(byte[] message, int round, int slot, int attempt) {
+		return xorKeyStream(message, 0, message.length, round, slot, attempt);
+	}
+
+	/**
+	 * As above, but for a slot occupying only length bytes of
+	 * message from offset on.
+	 */
+	public byte[] xorKeyStream(byte[] message, int offset, int length, int round, int slot, int attempt) {
+		return xorKeyStream(message, offset, length);
+	}
+
+	/**
+	 * Stop any threads the cipher keeps; it's unusable after.
+	 */
+	public void close() { }
+
+	/**
+	 * XOR the next length bytes of the keystreams of ciphers
+	 * [from, to) into message, from offset on.
+	 */
+	protected void xorCiphers(int from, int to, byte[] message, int offset, int length) {
+		for (int i = from; i < to; i++) {
+			ciphers[i].xorKeyStream(message, offset, length);
+		}
+	}
+
+	/**
+	 * XORs the pad of a range of secrets into a message; what
+	 * the pad is, and where it's from, is up to the cipher.
+	 */
+	protected interface RangeXor {
+		void xorRange(int from, int to, byte[] message, int offset, int length);
+	}
+
+	/**
+	 * Splits a cipher's secrets into contiguous ranges, one per
+	 * thread. The calling thread XORs the first range's pad
+	 * straight into the message; every other range has a thread
+	 * of its own for good, handed each call through fields set
+	 * in place, which XORs its pad into a partial; the caller
+	 * then folds the partials in. Each secret's keystream is only
+	 * ever touched by one thread per call, in order. Calls too
+	 * small to be worth the hand-off stay on the calling thread.
+	 */
+	protected static class RangeSplit {
+		/**
+		 * A range's thread and partial pad, and the call it's to
+		 * do next. Guarded by its own monitor.
+		 */
+		private static class Worker implements Runnable {
+			private final int from, to;
+			private byte[] partial = new byte[0];
+
+			private RangeXor xor;
+			private int length;
+
+			// Calls handed over and calls finished so far.
+			private long requested, completed;
+			private Throwable failure;
+			private boolean closed;
+
+			public Worker(int from, int to) {
+				this.from = from;
+				this.to = to;
+			}
+
+			public synchronized void start(RangeXor xor, int length) {
+				this.xor = xor;
+				this.length = length;
+				requested++;
+				notifyAll();
+			}
+
+			public synchronized void await() {
+				try {
+					while (completed < requested) {
+						wait();
+					}
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new IllegalStateException("interrupted computing pad", e);
+				}
+				if (failure != null) {
+					final Throwable cause = failure;
+					failure = null;
+					throw new IllegalStateException("pad worker failed", cause);
+				}
+			}
+
+			public synchronized void close() {
+				closed = true;
+				notifyAll();
+			}
+
+			public void run() {
+				while (true) {
+					final RangeXor xor;
+					final int length;
+					synchronized (this) {
+						try {
+							while (completed == requested && !closed) {
+								wait();
+							}
+						} catch (InterruptedException e) {
+							return;
+						}
+						if (closed) {
+							return;
+						}
+						xor = this.xor;
+						length = this.length;
+					}
+
+					Throwable failure = null;
+					try {
+						if (partial.length < length) {
+							partial = new byte[length];
+						}
+						Arrays.fill(partial, 0, length, (byte) 0);
+						xor.xorRange(from, to, partial, 0, length);
+					} catch (Throwable t) {
+						failure = t;
+					}
+
+					synchronized (this) {
+						this.failure = failure;
+						this.xor = null;
+						completed++;
+						notifyAll();
+					}
+				}
+			}
+		}
+
+		private final int[] ranges;
+		private final Worker[] workers;
+		private final long minParallelBytes;
+
+		/**
+		 * @param count how many secrets there are
+		 * @param threads how many threads, the caller's included,
+		 * to split them over, at most one per secret
+		 * @param minParallelBytes the fewest bytes of pad (length
+		 * times secrets) worth splitting
+		 * @param name what to call the threads
+		 */
+		public RangeSplit(int count, int threads, long minParallelBytes, String name) {
+			threads = Math.max(1, Math.min(threads, count));
+			this.minParallelBytes = minParallelBytes;
+			ranges = new int[threads + 1];
+			for (int t = 0; t <= threads; t++) {
+				ranges[t] = (int) ((long) count * t / threads);
+			}
+			workers = new Worker[threads];
+			for (int t = 1; t < threads; t++) {
+				workers[t] = new Worker(ranges[t], ranges[t + 1]);
+				Thread thread = new Thread(workers[t], name);
+				thread.setDaemon(true);
+				thread.start();
+			}
+		}
+
+		/**
+		 * XOR length bytes of the pad of every secret into
+		 * message, from offset on, a range per thread.
+		 */
+		public void xor(RangeXor xor, byte[] message, int offset, int length) {
+			final int count = ranges[ranges.length - 1];
+			if (workers.length == 1 || (long) length * count < minParallelBytes) {
+				xor.xorRange(0, count, message, offset, length);
+				return;
+			}
+
+			for (int t = 1; t < workers.length; t++) {
+				workers[t].start(xor, length);
+			}
+			RuntimeException failure = null;
+			try {
+				xor.xorRange(ranges[0], ranges[1], message, offset, length);
+			} catch (RuntimeException e) {
+				failure = e;
+			}
+			for (int t = 1; t < workers.length; t++) {
+				try {
+					workers[t].await();
+				} catch (RuntimeException e) {
+					if (failure == null) {
+						failure = e;
+					}
+				}
+			}
+			if (failure != null) {
+				throw failure;
+			}
+			for (int t = 1; t < workers.length; t++) {
+				XORCipher.xorBytes(workers[t].partial, 0, message, offset, length);
+			}
+		}
+
+		public void close() {
+			for (int t = 1; t < workers.length; t++) {
+				workers[t].close();
+			}
+		}
+	}
 }
@@ -0,0 +1,77 @@
+package dcnet;
+
+import java.util.Arrays;
+
+/**
+ * Flat storage for the plaintext of every slot in a round, so
+ * that decoded slots can be kept without a new array apiece.
+ * The backing array only ever grows, and is re-used from one
+ * round to the next.
+ */
+public class SlotStore {
+	private byte[] data = new byte[0];
+	private boolean[] filled = new boolean[0];
+
+	private int slotCount;
+	private int slotLength;
+
+	/**
+	 * Empty the store and size it for a new round.
+	 */
+	public void reset(int slotCount, int slotLength) {
+		final long needed = (long) slotCount * slotLength;
+		if (needed > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("round too large to store");
+		}
+		if (data.length < needed) {
+			data = new byte[(int) needed];
+		}
+		if (filled.length < slotCount) {
+			filled = new boolean[slotCount];
+		} else {
+			Arrays.fill(filled, 0, slotCount, false);
+		}
+		this.slotCount = slotCount;
+		this.slotLength = slotLength;
+	}
+
+	public int getSlotCount() {
+		return slotCount;
+	}
+
+	public int getSlotLength() {
+		return slotLength;
+	}
+
+	/**
+	 * Store the slotLength bytes of src at offset as the
+	 * contents of the index-th slot.
+	 */
+	public void put(int index, byte[] src, int offset) {
+		put(index, src, offset, slotLength);
+	}
+
+	/**
+	 * Store the length bytes of src at offset as the contents
+	 * of the index-th slot, zero-filling the rest of it.
+	 */
+	public void put(int index, byte[] src, int offset, int length) {
+		final int start = index * slotLength;
+		System.arraycopy(src, offset, data, start, length);
+		Arrays.fill(data, start + length, start + slotLength, (byte) 0);
+		filled[index] = true;
+	}
+
+	public boolean has(int index) {
+		return filled[index];
+	}
+
+	/**
+	 * Copy the index-th slot into buffer.
+	 * @return the passed buffer (for convenience)
+	 */
+	public byte[] get(int index, byte[] buffer) {
+		System.arraycopy(data, index * slotLength, buffer, 0, slotLength);
+		return buffer;
+	}
+}
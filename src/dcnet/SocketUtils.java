@@ -1,31 +1,307 @@
 package dcnet;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
-import java.io.DataInputStream;
+import java.io.EOFException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 import dcnet.XORCipher;
 
 public class SocketUtils {
-	public static void read(byte[] buffer, byte[] scratch, Socket... sockets) throws IOException {
-		for (Socket socket : sockets) {
-			InputStream is = socket.getInputStream();
-			DataInputStream dis = new DataInputStream(is);
-			dis.readFully(scratch);
+	/**
+	 * Writes bigger than this may not fit in the socket buffers,
+	 * so are done on a separate thread when peers write to each
+	 * other at the same time.
+	 */
+	private static final int ASYNC_WRITE_BYTES = 16 * 1024;
 
-			if (buffer != null) // XXX hacky workaround
-				XORCipher.xorBytes(scratch, buffer);
+	private static final ExecutorService writers = Executors.newCachedThreadPool(
+			new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "socket-writer");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+
+	public static void read(byte[] buffer, byte[] scratch, Connection... connections) throws IOException {
+		read(buffer, scratch.length, scratch, connections);
+	}
+
+	/**
+	 * Read length bytes from each connection into scratch, XORing
+	 * them into the start of buffer unless it's null. Connections
+	 * with direct channels are read into a pooled direct buffer
+	 * and XORed from there, leaving scratch alone.
+	 */
+	public static void read(byte[] buffer, int length, byte[] scratch, Connection... connections)
+			throws IOException {
+		ByteBuffer direct = null;
+		try {
+			for (Connection connection : connections) {
+				final SocketChannel channel = getDirectChannel(connection);
+				if (channel == null) {
+					readFully(connection.getInputStream(), scratch, 0, length);
+
+					if (buffer != null) // XXX hacky workaround
+						XORCipher.xorBytes(scratch, 0, buffer, 0, length);
+					continue;
+				}
+
+				if (direct == null) {
+					direct = DirectBufferPool.acquire(length);
+				}
+				direct.clear().limit(length);
+				readFully(channel, direct);
+				if (buffer != null) {
+					XORCipher.xorBytes(direct, 0, buffer, 0, length);
+				} else {
+					direct.flip();
+					direct.get(scratch, 0, length);
+				}
+			}
+		} finally {
+			DirectBufferPool.release(direct);
+		}
+	}
+
+	/**
+	 * Read length bytes from connection and XOR them into buffer
+	 * at offset, going through scratch if there's no direct
+	 * channel to read from.
+	 */
+	public static void readXor(Connection connection, byte[] buffer, int offset, int length, byte[] scratch)
+			throws IOException {
+		final SocketChannel channel = getDirectChannel(connection);
+		if (channel == null) {
+			readFully(connection.getInputStream(), scratch, 0, length);
+			XORCipher.xorBytes(scratch, 0, buffer, offset, length);
+			return;
+		}
+
+		final ByteBuffer direct = DirectBufferPool.acquire(length);
+		try {
+			readFully(channel, direct);
+			XORCipher.xorBytes(direct, 0, buffer, offset, length);
+		} finally {
+			DirectBufferPool.release(direct);
+		}
+	}
+
+	/**
+	 * Like DataInputStream.readFully, but without wrapping the
+	 * stream in a new object on every call.
+	 */
+	public static void readFully(InputStream is, byte[] buffer) throws IOException {
+		readFully(is, buffer, 0, buffer.length);
+	}
+
+	public static void readFully(InputStream is, byte[] buffer, int offset, int length) throws IOException {
+		final int end = offset + length;
+		while (offset < end) {
+			int n = is.read(buffer, offset, end - offset);
+			if (n < 0) {
+				throw new EOFException();
+			}
+			offset += n;
+		}
+	}
+
+	public static void write(byte[] buffer, Connection... connections) throws IOException {
+		write(buffer, buffer.length, connections);
+	}
+
+	/**
+	 * Write the first length bytes of buffer to every connection.
+	 * For those with direct channels, it's copied once into a
+	 * pooled direct buffer, which is then written to each.
+	 */
+	public static void write(byte[] buffer, int length, Connection... connections) throws IOException {
+		ByteBuffer direct = null;
+		try {
+			for (Connection connection : connections) {
+				final SocketChannel channel = getDirectChannel(connection);
+				if (channel == null) {
+					OutputStream os = connection.getOutputStream();
+					os.write(buffer, 0, length);
+					continue;
+				}
+
+				if (direct == null) {
+					direct = DirectBufferPool.acquire(length);
+					direct.put(buffer, 0, length);
+				}
+				direct.position(0);
+				writeFully(channel, direct);
+			}
+		} finally {
+			DirectBufferPool.release(direct);
+		}
+	}
+
+	/**
+	 * Write what's left of frame to every connection, straight
+	 * from it where there's a channel. Its position and limit
+	 * are left as they were.
+	 */
+	public static void write(ByteBuffer frame, Connection... connections) throws IOException {
+		final int position = frame.position();
+		byte[] bytes = null;
+		try {
+			for (Connection connection : connections) {
+				final SocketChannel channel = getDirectChannel(connection);
+				if (channel != null) {
+					writeFully(channel, frame);
+					frame.position(position);
+					continue;
+				}
+
+				OutputStream os = connection.getOutputStream();
+				if (frame.hasArray()) {
+					os.write(frame.array(), frame.arrayOffset() + position, frame.remaining());
+				} else {
+					if (bytes == null) {
+						bytes = new byte[frame.remaining()];
+						frame.get(bytes);
+						frame.position(position);
+					}
+					os.write(bytes);
+				}
+			}
+		} finally {
+			frame.position(position);
 		}
 	}
 
-	public static void write(byte[] buffer, Socket... sockets) throws IOException {
-		for (Socket socket : sockets) {
-			OutputStream os = socket.getOutputStream();
-			os.write(buffer);
+	/**
+	 * Send buffer to every connection while reading the same amount
+	 * back from each of them, XORing it all into buffer. Unlike
+	 * write followed by read, this doesn't deadlock when every
+	 * peer sends more than fits in the socket buffers at once.
+	 */
+	public static void exchange(byte[] buffer, byte[] scratch, final Connection... connections) throws IOException {
+		exchange(buffer, buffer.length, scratch, connections);
+	}
+
+	/**
+	 * As above, for just the first length bytes of buffer.
+	 */
+	public static void exchange(byte[] buffer, int length, byte[] scratch, final Connection... connections)
+			throws IOException {
+		if (length <= ASYNC_WRITE_BYTES) {
+			write(buffer, length, connections);
+			read(buffer, length, scratch, connections);
+			return;
+		}
+
+		// The reads XOR into buffer, so send from a pooled copy.
+		final ByteBuffer out = DirectBufferPool.acquire(length);
+		out.put(buffer, 0, length).flip();
+		Future<Void> sent = writers.submit(new Callable<Void>() {
+			public Void call() throws IOException {
+				write(out, connections);
+				return null;
+			}
+		});
+		try {
+			read(buffer, length, scratch, connections);
+			await(sent);
+		} finally {
+			// A write still going on a failure keeps its buffer.
+			if (sent.isDone()) {
+				DirectBufferPool.release(out);
+			}
+		}
+	}
+
+	/**
+	 * Write part of buffer to connection, on a helper thread if it's
+	 * big enough that the write might block on the peer.
+	 * @return the pending write, or null if already done
+	 */
+	public static Future<Void> writeAsync(final byte[] buffer, final int offset, final int length,
+			final Connection connection) throws IOException {
+		if (length <= ASYNC_WRITE_BYTES) {
+			write(buffer, offset, length, connection);
+			return null;
+		}
+		return writers.submit(new Callable<Void>() {
+			public Void call() throws IOException {
+				write(buffer, offset, length, connection);
+				return null;
+			}
+		});
+	}
+
+	private static void write(byte[] buffer, int offset, int length, Connection connection) throws IOException {
+		final SocketChannel channel = getDirectChannel(connection);
+		if (channel == null) {
+			connection.getOutputStream().write(buffer, offset, length);
+			return;
+		}
+
+		final ByteBuffer direct = DirectBufferPool.acquire(length);
+		try {
+			direct.put(buffer, offset, length).flip();
+			writeFully(channel, direct);
+		} finally {
+			DirectBufferPool.release(direct);
+		}
+	}
+
+	/**
+	 * @return the channel to read and write connection through
+	 * with direct buffers, or null to use its streams
+	 */
+	private static SocketChannel getDirectChannel(Connection connection) {
+		if (connection instanceof TcpTransport.TcpConnection) {
+			TcpTransport.TcpConnection tcp = (TcpTransport.TcpConnection) connection;
+			if (tcp.isDirect() && tcp.getChannel().isBlocking()) {
+				return tcp.getChannel();
+			}
+		}
+		return null;
+	}
+
+	private static void readFully(SocketChannel channel, ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer) < 0) {
+				throw new EOFException();
+			}
+		}
+	}
+
+	private static void writeFully(SocketChannel channel, ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+	}
+
+	/**
+	 * Wait for a write started by writeAsync to finish.
+	 */
+	public static void await(Future<Void> pending) throws IOException {
+		if (pending == null) {
+			return;
+		}
+		try {
+			pending.get();
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException("interrupted waiting for write");
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new IOException(e.getCause());
 		}
 	}
 }
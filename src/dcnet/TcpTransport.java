@@ -0,0 +1,140 @@
+package dcnet;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Plain TCP sockets. Connections are made and accepted through
+ * channels, so that they can be handed to a ChannelGroup or read
+ * and written through direct buffers, and get the same socket
+ * options either way.
+ */
+public class TcpTransport implements Transport {
+	// Room for lots of clients connecting at once; the kernel
+	// caps this at its own limit (somaxconn).
+	private static final int BACKLOG = 4096;
+
+	private final boolean tcpNoDelay;
+	private final int sendBuffer, receiveBuffer;
+	private final boolean direct;
+
+	public TcpTransport() {
+		this(true, 0, 0, true);
+	}
+
+	/**
+	 * @param tcpNoDelay turn off Nagle's algorithm
+	 * @param sendBuffer socket send buffer size, or 0 for the default
+	 * @param receiveBuffer socket receive buffer size, or 0 for the default
+	 * @param direct have SocketUtils go through the channels with
+	 * direct buffers, rather than through the socket streams
+	 */
+	public TcpTransport(boolean tcpNoDelay, int sendBuffer, int receiveBuffer, boolean direct) {
+		this.tcpNoDelay = tcpNoDelay;
+		this.sendBuffer = sendBuffer;
+		this.receiveBuffer = receiveBuffer;
+		this.direct = direct;
+	}
+
+	public static class TcpConnection implements Connection {
+		private Socket socket;
+		private SocketChannel channel;
+		private boolean direct;
+
+		public TcpConnection(Socket socket) {
+			this.socket = socket;
+		}
+
+		public TcpConnection(SocketChannel channel) {
+			this(channel, false);
+		}
+
+		public TcpConnection(SocketChannel channel, boolean direct) {
+			this.socket = channel.socket();
+			this.channel = channel;
+			this.direct = direct;
+		}
+
+		public Socket getSocket() {
+			return socket;
+		}
+
+		/**
+		 * @return the underlying channel, or null if the
+		 * connection wasn't accepted through one
+		 */
+		public SocketChannel getChannel() {
+			return channel;
+		}
+
+		/**
+		 * @return whether to read and write through the channel
+		 * with direct buffers rather than the streams
+		 */
+		public boolean isDirect() {
+			return direct && channel != null;
+		}
+
+		public InputStream getInputStream() throws IOException {
+			return socket.getInputStream();
+		}
+
+		public OutputStream getOutputStream() throws IOException {
+			return socket.getOutputStream();
+		}
+
+		public void close() throws IOException {
+			socket.close();
+		}
+	}
+
+	public Listener listen(int port) throws IOException {
+		final ServerSocketChannel listener = ServerSocketChannel.open();
+		listener.socket().setReuseAddress(true);
+		// Accepted sockets inherit this, and it has to be set
+		// before the handshake for windows over 64K.
+		if (receiveBuffer > 0) {
+			listener.socket().setReceiveBufferSize(receiveBuffer);
+		}
+		listener.socket().bind(new InetSocketAddress(port), BACKLOG);
+
+		return new Listener() {
+			public Connection accept() throws IOException {
+				SocketChannel channel = listener.accept();
+				configure(channel.socket());
+				return new TcpConnection(channel, direct);
+			}
+
+			public void close() throws IOException {
+				listener.close();
+			}
+		};
+	}
+
+	public Connection connect(String host, int port) throws IOException {
+		SocketChannel channel = SocketChannel.open();
+		try {
+			configure(channel.socket());
+			channel.connect(new InetSocketAddress(host, port));
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+		return new TcpConnection(channel, direct);
+	}
+
+	private void configure(Socket socket) throws IOException {
+		socket.setTcpNoDelay(tcpNoDelay);
+		if (sendBuffer > 0) {
+			socket.setSendBufferSize(sendBuffer);
+		}
+		if (receiveBuffer > 0) {
+			socket.setReceiveBufferSize(receiveBuffer);
+		}
+	}
+}
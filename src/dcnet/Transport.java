@@ -0,0 +1,19 @@
+package dcnet;
+
+import java.io.IOException;
+
+/**
+ * How participants reach each other. Servers listen on a port
+ * per server (one for clients, one for the other servers), and
+ * clients and lower-numbered servers connect to them there.
+ */
+public interface Transport {
+
+	public interface Listener {
+		public Connection accept() throws IOException;
+		public void close() throws IOException;
+	}
+
+	public Listener listen(int port) throws IOException;
+	public Connection connect(String host, int port) throws IOException;
+}
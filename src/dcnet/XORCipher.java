@@ -1,10 +1,31 @@
 package dcnet;
 
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.util.Random;
 
 public class XORCipher {
 	private static final int DEFAULT_BUFFER_SIZE = 1024;
 
+	/**
+	 * Set the system property dcnet.xor.bytewise to fall back
+	 * to the original one-byte-at-a-time loops, e.g. to compare
+	 * against the word-wide kernels.
+	 */
+	private static final boolean BYTEWISE = Boolean.getBoolean("dcnet.xor.bytewise");
+
+	// Below this the word-wide setup isn't worth it.
+	private static final int WORD_THRESHOLD = 32;
+
+	// Native-order long views of byte arrays and buffers, for
+	// (possibly unaligned) word loads and stores at any offset.
+	private static final VarHandle ARRAY_LONGS =
+		MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.nativeOrder());
+	private static final VarHandle BUFFER_LONGS =
+		MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.nativeOrder());
+
 	private static class Buffer {
 		public byte[] b;
 		public int u;
@@ -28,6 +49,49 @@ public class XORCipher {
 	}
 
 	public void xorKeyStream(byte[] src, byte[] dst) {
+		if (BYTEWISE) {
+			xorKeyStreamBytewise(src, dst);
+			return;
+		}
+
+		// Apply the pad a run at a time, up to the end of whatever
+		// is left in the buffer, rather than checking every byte.
+		int i = 0;
+		while (i < dst.length) {
+			if (buffer.u >= buffer.b.length) {
+				random.nextBytes(buffer.b);
+				buffer.u = 0;
+			}
+			final int n = Math.min(dst.length - i, buffer.b.length - buffer.u);
+			if (src != dst) {
+				System.arraycopy(src, i, dst, i, n);
+			}
+			xorBytes(buffer.b, buffer.u, dst, i, n);
+			buffer.u += n;
+			i += n;
+		}
+	}
+
+	/**
+	 * XOR the next length bytes of the keystream into message,
+	 * starting at offset.
+	 */
+	public void xorKeyStream(byte[] message, int offset, int length) {
+		final int end = offset + length;
+		int i = offset;
+		while (i < end) {
+			if (buffer.u >= buffer.b.length) {
+				random.nextBytes(buffer.b);
+				buffer.u = 0;
+			}
+			final int n = Math.min(end - i, buffer.b.length - buffer.u);
+			xorBytes(buffer.b, buffer.u, message, i, n);
+			buffer.u += n;
+			i += n;
+		}
+	}
+
+	void xorKeyStreamBytewise(byte[] src, byte[] dst) {
 		for (int i = 0; i < dst.length; i++) {
 			if (buffer.u >= buffer.b.length) {
 				random.nextBytes(buffer.b);
@@ -40,8 +104,58 @@ public class XORCipher {
 
 	public static void xorBytes(byte[] src, byte[] dst) {
 		int len = Math.min(src.length, dst.length);
-		for (int i = 0; i < len; i++) {
-			dst[i] ^= src[i];
+		xorBytes(src, 0, dst, 0, len);
+	}
+
+	public static void xorBytes(byte[] src, int srcOffset, byte[] dst, int dstOffset, int length) {
+		if (BYTEWISE || length < WORD_THRESHOLD) {
+			xorBytesBytewise(src, srcOffset, dst, dstOffset, length);
+		} else {
+			xorWords(src, srcOffset, dst, dstOffset, length);
+		}
+	}
+
+	/**
+	 * XOR length bytes of src (read with absolute gets, so its
+	 * position is left alone), from srcOffset on, into dst.
+	 * Lets bytes read into a direct buffer be folded in without
+	 * copying them out first.
+	 */
+	public static void xorBytes(ByteBuffer src, int srcOffset, byte[] dst, int dstOffset, int length) {
+		int i = 0;
+		if (!BYTEWISE && length >= WORD_THRESHOLD) {
+			final int words = length & ~7;
+			for (; i < words; i += 8) {
+				final long word = (long) ARRAY_LONGS.get(dst, dstOffset + i)
+					^ (long) BUFFER_LONGS.get(src, srcOffset + i);
+				ARRAY_LONGS.set(dst, dstOffset + i, word);
+			}
+		}
+		for (; i < length; i++) {
+			dst[dstOffset + i] ^= src.get(srcOffset + i);
+		}
+	}
+
+	static void xorBytesBytewise(byte[] src, int srcOffset, byte[] dst, int dstOffset, int length) {
+		for (int i = 0; i < length; i++) {
+			dst[dstOffset + i] ^= src[srcOffset + i];
+		}
+	}
+
+	/**
+	 * XOR eight bytes at a time through long views of the
+	 * arrays, then finish off the tail a byte at a time. The
+	 * JIT compiles the view accesses down to plain (possibly
+	 * unaligned) word loads and stores, and nothing is
+	 * allocated per call.
+	 */
+	static void xorWords(byte[] src, int srcOffset, byte[] dst, int dstOffset, int length) {
+		final int words = length & ~7;
+		for (int i = 0; i < words; i += 8) {
+			final long word = (long) ARRAY_LONGS.get(dst, dstOffset + i)
+				^ (long) ARRAY_LONGS.get(src, srcOffset + i);
+			ARRAY_LONGS.set(dst, dstOffset + i, word);
 		}
+		xorBytesBytewise(src, srcOffset + words, dst, dstOffset + words, length - words);
 	}
 }
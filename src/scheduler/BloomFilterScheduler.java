@@ -5,7 +5,15 @@ import java.io.FileWriter;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 import java.util.zip.CRC32;
 
 import scheduler.control.ControlSlot;
@@ -14,20 +22,78 @@ import services.BloomFilter;
 
 public class BloomFilterScheduler implements ControlSlot.Scheduler {
 
-	private BloomFilter bloomFilter;
-	private byte[][] cache;
-	private byte[][] slots;
+	private static final int EMPTY = -1;
+
+	// Schedules with at least this many elements are worked out
+	// on several threads, if there are any to spare.
+	private static final int PARALLEL_ELEMENTS = 1 << 12;
+
+	private static ExecutorService workers;
+
+	private final int m, k;
+	private BloomIndexer indexer;
+	private long seed;
+	private int threads = 1;
+
+	private ElementStore elements;
+
+	// Index into elements of each slot's element, or EMPTY.
+	private int[] slots;
+
+	// Element i's chosen slots end up in indices[i * k, i * k
+	// + found[i]). Kept, and grown as need be, across finalizes.
+	private int[] indices = new int[0];
+	private int[] found = new int[0];
 
-	private int elementCount;
 	private int filledCount;
 
 	public BloomFilterScheduler(int elements, double fpr) {
+		this(elements, fpr, false);
+	}
+
+	/**
+	 * @param direct keep the elements off the heap
+	 */
+	public BloomFilterScheduler(int elements, double fpr, boolean direct) {
 		double[] params = BloomFilter.getParameterEstimate(elements, fpr);
-		int m = (int) params[0], k = (int) params[1];
+		this.m = (int) params[0];
+		this.k = Math.max(1, (int) params[1]);
+
+		setSeed(new Random().nextLong());
+		this.elements = new ElementStore(direct);
+		this.slots = new int[m];
+		Arrays.fill(slots, EMPTY);
+	}
 
-		this.bloomFilter = new BloomFilter(k, m, true);
-		this.cache = new byte[m][];
-		this.slots = new byte[m][];
+	/**
+	 * Fix the hash functions and the sampling of slots, so that
+	 * the same elements always get the same schedule. Otherwise
+	 * both are random, so that two elements which collide in one
+	 * schedule needn't collide in the next.
+	 */
+	public void setSeed(long seed) {
+		this.seed = seed;
+		this.indexer = new BloomIndexer(k, m, seed);
+	}
+
+	/**
+	 * @param threads how many threads finalizeSchedule may use;
+	 * the schedule doesn't depend on it
+	 */
+	public void setThreads(int threads) {
+		this.threads = Math.max(1, threads);
+	}
+
+	/**
+	 * Forget the elements and the schedule, keeping the space
+	 * they took, and pick a new random seed, so the scheduler can
+	 * be used again for another round.
+	 */
+	public void clear() {
+		elements.clear();
+		Arrays.fill(slots, EMPTY);
+		filledCount = 0;
+		setSeed(new Random().nextLong());
 	}
 
 	public boolean add(String value) {
@@ -39,46 +105,141 @@ public class BloomFilterScheduler implements ControlSlot.Scheduler {
 		}
 	}
 
+	/**
+	 * Add an element, as many times more than estimated as need
+	 * be (at the cost of more collisions). The value is copied,
+	 * so the caller is free to re-use it.
+	 */
 	public boolean add(byte[] value) {
-		cache[elementCount++] = value;
-		return bloomFilter.insert(value);
+		elements.add(value);
+		return true;
 	}
 
 	public boolean finalizeSchedule() {
 		return finalizeSchedule(Integer.MAX_VALUE);
 	}
 
+	/**
+	 * Give each element up to slotsPerElement of the slots it
+	 * hashes to, chosen at random. Where elements share a slot,
+	 * the one added last gets it.
+	 * @return whether any element had no slots to choose from
+	 */
 	public boolean finalizeSchedule(int slotsPerElement) {
 		if (slotsPerElement < 1) {
 			slotsPerElement = Integer.MAX_VALUE;
 		}
-		Random random = new Random();
-		filledCount = 0;
+		final int limit = slotsPerElement;
+		final int elementCount = elements.size();
+		final ByteBuffer buffer = elements.getBuffer();
+
+		// Each part only touches its own elements' indices.
+		if (found.length < elementCount) {
+			indices = new int[elementCount * k];
+			found = new int[elementCount];
+		}
+		final int[] indices = this.indices;
+		final int[] found = this.found;
+		forEachPart(elementCount, new Part() {
+			public void run(int from, int to) {
+				for (int i = from; i < to; i++) {
+					final int base = i * k;
+					final int unique = indexer.getIndices(buffer, elements.getOffset(i),
+							elements.getLength(i), indices, base);
+
+					// Pick a random sample of up to limit indices.
+					// The draws depend only on the seed and i, not
+					// on which thread gets element i.
+					final int chosen = Math.min(limit, unique);
+					for (int j = chosen; j < unique; j++) {
+						final int r = random(i, j, j + 1);
+						if (r < chosen) {
+							indices[base + r] = indices[base + j];
+						}
+					}
+					found[i] = chosen;
+				}
+			}
+		});
 
+		// Assign the elements to the slots they picked, in order,
+		// so later elements take over shared slots.
+		Arrays.fill(slots, EMPTY);
+		filledCount = 0;
 		boolean collision = false;
 		for (int i = 0; i < elementCount; i++) {
-			int[] indices = bloomFilter.getUniqueIndices(cache[i]);
-			if (indices.length < 1) {
+			if (found[i] < 1) {
 				collision = true;
 				continue;
 			}
+			for (int j = i * k, end = j + found[i]; j < end; j++) {
+				slots[indices[j]] = i;
+			}
+			filledCount += found[i];
+		}
+		return collision;
+	}
+
+	/**
+	 * @return a number in [0, bound) determined by the seed,
+	 * element and draw
+	 */
+	private int random(int element, int draw, int bound) {
+		final long bits = BloomIndexer.mix(seed ^ BloomIndexer.mix(((long) element << 32) | draw));
+		return (int) (((bits >>> 32) * bound) >>> 32);
+	}
+
+	private interface Part {
+		/**
+		 * Handle elements [from, to).
+		 */
+		void run(int from, int to);
+	}
 
-			int limit = Math.min(slotsPerElement, indices.length);
+	/**
+	 * Split [0, count) into parts, one per thread, and run part
+	 * on each of them, on the workers if it's worth it.
+	 */
+	private void forEachPart(int count, final Part part) {
+		final int parts = (count < PARALLEL_ELEMENTS) ? 1 : threads;
+		if (parts == 1) {
+			part.run(0, count);
+			return;
+		}
 
-			// Pick a random sample of up to slotsPerElement indices.
-			for (int j = limit + 1; j < indices.length; j++) {
-				int k = random.nextInt(j);
-				if (k < limit) {
-					indices[k] = indices[j];
+		final int step = (count + parts - 1) / parts;
+		List<Future<?>> futures = new ArrayList<Future<?>>(parts);
+		for (int from = 0; from < count; from += step) {
+			final int start = from, end = Math.min(count, from + step);
+			futures.add(getWorkers().submit(new Runnable() {
+				public void run() {
+					part.run(start, end);
 				}
+			}));
+		}
+		try {
+			for (Future<?> future : futures) {
+				future.get();
 			}
-			// Assign the element to the slots we just picked.
-			for (int j = 0; j < limit; j++) {
-				slots[indices[j]] = cache[i];
-				filledCount++;
-			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("interrupted finalizing schedule", e);
+		} catch (ExecutionException e) {
+			throw new IllegalStateException("error finalizing schedule", e.getCause());
 		}
-		return collision;
+	}
+
+	private static synchronized ExecutorService getWorkers() {
+		if (workers == null) {
+			workers = Executors.newCachedThreadPool(new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "schedule-worker");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return workers;
 	}
 
 	public int getSlotCount() {
@@ -89,6 +250,17 @@ public class BloomFilterScheduler implements ControlSlot.Scheduler {
 		return filledCount;
 	}
 
+	public int getElementCount() {
+		return elements.size();
+	}
+
+	/**
+	 * @return a copy of the index-th element added
+	 */
+	public byte[] getElement(int index) {
+		return elements.get(index);
+	}
+
 	/**
 	 * Encode the index-th slot into the provided byte array.
 	 * The first 12 bytes are reserved for encoding metadata
@@ -101,22 +273,30 @@ public class BloomFilterScheduler implements ControlSlot.Scheduler {
 	 * @return the passed buffer (for convenience)
 	 */
 	public byte[] getSlot(int index, byte[] buffer) {
-		byte[] slot = slots[index];
-		if (slot != null) {
-			final int offset = SlotUtils.METADATA_BYTES;
-			System.arraycopy(slot, 0, buffer, offset, slot.length);
-			SlotUtils.encode(buffer, slot.length);
+		final int element = slots[index];
+		if (element != EMPTY) {
+			elements.copy(element, buffer, SlotUtils.METADATA_BYTES);
+			SlotUtils.encode(buffer, elements.getLength(element));
 		}
 		return buffer;
 	}
 
+	/**
+	 * @return a copy of the index-th slot's element, without any
+	 * encoding, or null if the slot is empty
+	 */
+	public byte[] getSlotElement(int index) {
+		final int element = slots[index];
+		return (element == EMPTY) ? null : elements.get(element);
+	}
+
 	public boolean isEmpty(int index) {
-		return slots[index] == null;
+		return slots[index] == EMPTY;
 	}
 
 	public int getLength(int index) {
-		final byte[] slot = slots[index];
-		return (slot == null) ? 0 : slot.length;
+		final int element = slots[index];
+		return (element == EMPTY) ? 0 : elements.getLength(element);
 	}
 
 	public void writeSlotsToFile(String outputFile) throws IOException {
@@ -129,8 +309,8 @@ public class BloomFilterScheduler implements ControlSlot.Scheduler {
 			BufferedWriter bw = new BufferedWriter(fw);
 		) {
 			for (int i = 0; i < slots.length; i++) {
-				if (slots[i] != null) {
-					String slotValue = new String(slots[i], "ISO-8859-1"); 
+				if (slots[i] != EMPTY) {
+					String slotValue = new String(elements.get(slots[i]), "ISO-8859-1");
 					bw.write(String.format("%04d: ", i));
 					bw.write(slotValue);
 					bw.newLine();
@@ -0,0 +1,114 @@
+package scheduler;
+
+import java.nio.ByteBuffer;
+
+import services.BloomFilter;
+
+/**
+ * Works out the k Bloom filter indices of an element, out of
+ * m, by double hashing: one 64-bit hash of the element gives
+ * h1 and h2, and the i-th index is h1 + i * h2, scaled to [0, m).
+ * Indices are written to caller-provided arrays and elements are
+ * read in place, so nothing is allocated per element. Instances
+ * hold no mutable state and can be shared between threads.
+ */
+public class BloomIndexer {
+	private static final long PRIME1 = 0x9E3779B185EBCA87L;
+	private static final long PRIME2 = 0xC2B2AE3D27D4EB4FL;
+	private static final long PRIME3 = 0x165667B19E3779F9L;
+
+	private final int k, m;
+	private final long seed;
+
+	public BloomIndexer(int k, int m, long seed) {
+		if (k < 1 || m < 1) {
+			throw new IllegalArgumentException("k and m must be positive");
+		}
+		this.k = k;
+		this.m = m;
+		this.seed = seed;
+	}
+
+	/**
+	 * Size the filter exactly as BloomFilter.getParameterEstimate
+	 * would, so schedules keep the same number of slots.
+	 */
+	public static BloomIndexer forEstimate(int elements, double fpr, long seed) {
+		double[] params = BloomFilter.getParameterEstimate(elements, fpr);
+		return new BloomIndexer(Math.max(1, (int) params[1]), (int) params[0], seed);
+	}
+
+	public int getK() {
+		return k;
+	}
+
+	public int getM() {
+		return m;
+	}
+
+	/**
+	 * Write the distinct indices of the element occupying length
+	 * bytes of buffer from offset on into indices, from indexOffset
+	 * on; there's room for k, but repeats are left out.
+	 * Only absolute reads are made of buffer.
+	 * @return the number of distinct indices written
+	 */
+	public int getIndices(ByteBuffer buffer, int offset, int length, int[] indices, int indexOffset) {
+		final long hash = hash(buffer, offset, length);
+		final long h1 = hash;
+		final long h2 = mix(hash ^ PRIME3) | 1;
+
+		int count = 0;
+		long combined = h1;
+		for (int i = 0; i < k; i++) {
+			final int index = (int) (((combined >>> 32) * m) >>> 32);
+			combined += h2;
+
+			boolean repeat = false;
+			for (int j = 0; j < count; j++) {
+				if (indices[indexOffset + j] == index) {
+					repeat = true;
+					break;
+				}
+			}
+			if (!repeat) {
+				indices[indexOffset + count++] = index;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * A 64-bit hash of length bytes of buffer from offset on,
+	 * taking eight bytes at a time.
+	 */
+	private long hash(ByteBuffer buffer, int offset, int length) {
+		long h = seed ^ (length * PRIME1);
+		final int end = offset + length;
+		int i = offset;
+		for (; i + 8 <= end; i += 8) {
+			h ^= mix(buffer.getLong(i));
+			h = Long.rotateLeft(h, 27) * PRIME1 + PRIME2;
+		}
+		long tail = 0;
+		for (int shift = 0; i < end; i++, shift += 8) {
+			tail |= (buffer.get(i) & 0xffL) << shift;
+		}
+		h ^= mix(tail);
+		return mix(h);
+	}
+
+	/**
+	 * Scramble the bits of x (the MurmurHash3 finalizer, with
+	 * different constants); also used to derive random numbers
+	 * from a seed and a position.
+	 */
+	static long mix(long x) {
+		x ^= x >>> 33;
+		x *= PRIME2;
+		x ^= x >>> 29;
+		x *= PRIME1;
+		x ^= x >>> 32;
+		return x;
+	}
+}
@@ -0,0 +1,154 @@
+package scheduler;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Elements packed back to back in one growable buffer, on or
+ * off the heap, and addressed by index, so that lots of small
+ * elements don't each need an array of their own. Elements are
+ * copied in and out; the store itself is not thread-safe.
+ */
+public class ElementStore {
+	private static final int INITIAL_BYTES = 4096;
+	private static final int INITIAL_ELEMENTS = 64;
+	private static final int MAX_BYTES = Integer.MAX_VALUE - 8;
+
+	private final boolean direct;
+
+	private ByteBuffer arena;
+	private int used;
+
+	private int[] offsets = new int[INITIAL_ELEMENTS];
+	private int[] lengths = new int[INITIAL_ELEMENTS];
+	private int count;
+
+	public ElementStore() {
+		this(false);
+	}
+
+	/**
+	 * @param direct keep the elements in a direct (off-heap)
+	 * buffer rather than a byte array
+	 */
+	public ElementStore(boolean direct) {
+		this.direct = direct;
+		this.arena = allocate(INITIAL_BYTES);
+	}
+
+	public int add(byte[] element) {
+		return add(element, 0, element.length);
+	}
+
+	/**
+	 * Copy length bytes of src, from offset on, into the store.
+	 * @return the index of the new element
+	 */
+	public int add(byte[] src, int offset, int length) {
+		ensureCapacity(length);
+		if (direct) {
+			arena.position(used);
+			arena.put(src, offset, length);
+		} else {
+			System.arraycopy(src, offset, arena.array(), used, length);
+		}
+
+		if (count == offsets.length) {
+			offsets = Arrays.copyOf(offsets, count * 2);
+			lengths = Arrays.copyOf(lengths, count * 2);
+		}
+		offsets[count] = used;
+		lengths[count] = length;
+		used += length;
+		return count++;
+	}
+
+	public int size() {
+		return count;
+	}
+
+	/**
+	 * @return the total length of all the elements
+	 */
+	public int getBytes() {
+		return used;
+	}
+
+	public int getLength(int index) {
+		checkIndex(index);
+		return lengths[index];
+	}
+
+	/**
+	 * @return where the index-th element starts in getBuffer()
+	 */
+	public int getOffset(int index) {
+		checkIndex(index);
+		return offsets[index];
+	}
+
+	/**
+	 * A read-only view of the elements, for reading them in place
+	 * with absolute gets, which several threads can do at once.
+	 * The view goes stale once more elements are added.
+	 */
+	public ByteBuffer getBuffer() {
+		return arena.asReadOnlyBuffer();
+	}
+
+	/**
+	 * Copy the index-th element into dst at offset.
+	 * @return the passed dst (for convenience)
+	 */
+	public byte[] copy(int index, byte[] dst, int offset) {
+		checkIndex(index);
+		if (direct) {
+			arena.position(offsets[index]);
+			arena.get(dst, offset, lengths[index]);
+		} else {
+			System.arraycopy(arena.array(), offsets[index], dst, offset, lengths[index]);
+		}
+		return dst;
+	}
+
+	/**
+	 * @return a copy of the index-th element
+	 */
+	public byte[] get(int index) {
+		return copy(index, new byte[getLength(index)], 0);
+	}
+
+	/**
+	 * Forget all the elements, keeping the space they took.
+	 */
+	public void clear() {
+		count = 0;
+		used = 0;
+	}
+
+	private void ensureCapacity(int length) {
+		final long needed = (long) used + length;
+		if (needed <= arena.capacity()) {
+			return;
+		}
+		if (needed > MAX_BYTES) {
+			throw new IllegalStateException("element store full");
+		}
+		final int capacity = (int) Math.min(MAX_BYTES, Math.max(needed, 2L * arena.capacity()));
+		ByteBuffer grown = allocate(capacity);
+		arena.position(0).limit(used);
+		grown.put(arena);
+		arena = grown;
+		arena.clear();
+	}
+
+	private ByteBuffer allocate(int capacity) {
+		return direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+	}
+
+	private void checkIndex(int index) {
+		if (index < 0 || index >= count) {
+			throw new IndexOutOfBoundsException(String.format("element %d of %d", index, count));
+		}
+	}
+}
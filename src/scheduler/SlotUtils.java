@@ -34,30 +34,75 @@ public class SlotUtils {
 
 		public boolean isEmpty;
 		public boolean isValid;
+
+		// Kept around so repeated decodes don't allocate.
+		private CRC32 crc32;
 	}
 
 	public static SlotMetadata decode(byte[] buffer) {
-		final int offset = METADATA_BYTES;
-		SlotMetadata meta = new SlotMetadata();
+		return decode(buffer, 0, buffer.length, new SlotMetadata());
+	}
+
+	/**
+	 * Decode the slot occupying length bytes of buffer starting
+	 * at offset, without allocating: the results are written
+	 * to (and returned in) the given metadata object, which can
+	 * be re-used from slot to slot.
+	 */
+	public static SlotMetadata decode(byte[] buffer, int offset, int length, SlotMetadata meta) {
+		final int dataOffset = offset + METADATA_BYTES;
 
 		// Get the length and checksum from the slot metadata.
-		ByteBuffer wrapper = ByteBuffer.wrap(buffer, 0, offset);
-		final int length = wrapper.getInt();
-		final long checksum = wrapper.getLong();
+		final int dataLength = getInt(buffer, offset);
+		final long checksum = getChecksum(buffer, offset);
 
-		meta.isEmpty = length == 0 && checksum == 0;
+		meta.isEmpty = dataLength == 0 && checksum == 0;
+		meta.isValid = false;
 
 		// Don't bother with checksum on empty slot.
 		if (!meta.isEmpty) {
 			// Update checksum with full slot contents.
-			CRC32 crc32 = new CRC32();
-			crc32.update(buffer, offset, buffer.length - offset);
-			meta.isValid = (crc32.getValue() == checksum);
+			if (meta.crc32 == null) {
+				meta.crc32 = new CRC32();
+			}
+			meta.crc32.reset();
+			meta.crc32.update(buffer, dataOffset, length - METADATA_BYTES);
+			meta.isValid = (meta.crc32.getValue() == checksum);
 		}
-		meta.length = length;
+		meta.offset = dataOffset;
+		meta.length = dataLength;
 		return meta;
 	}
 
+	/**
+	 * @return the data length recorded in the slot's metadata,
+	 * without checking it
+	 */
+	public static int getLength(byte[] buffer) {
+		return getLength(buffer, 0);
+	}
+
+	/**
+	 * As above, for the slot at offset in buffer.
+	 */
+	public static int getLength(byte[] buffer, int offset) {
+		return getInt(buffer, offset);
+	}
+
+	/**
+	 * @return the checksum recorded in the metadata of the slot
+	 * at offset in buffer, without checking it
+	 */
+	public static long getChecksum(byte[] buffer, int offset) {
+		return ((long) getInt(buffer, offset + LENGTH_BYTES) << 32)
+			| (getInt(buffer, offset + LENGTH_BYTES + 4) & 0xffffffffL);
+	}
+
+	private static int getInt(byte[] buffer, int offset) {
+		return ((buffer[offset] & 0xff) << 24) | ((buffer[offset + 1] & 0xff) << 16)
+			| ((buffer[offset + 2] & 0xff) << 8) | (buffer[offset + 3] & 0xff);
+	}
+
 	public static String toString(byte[] buffer) throws UnsupportedEncodingException {
 		final int offset = METADATA_BYTES;
 
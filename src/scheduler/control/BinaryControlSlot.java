@@ -1,74 +1,135 @@
 package scheduler.control;
 
-import java.util.BitSet;
-import java.util.Random;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 public class BinaryControlSlot extends DummyControlSlot {
 
-	private byte[] coinFlips;
+	// Rounds with at least this many slots have their results
+	// worked out on several cores.
+	private static final int PARALLEL_SLOTS = 1 << 16;
 
-	protected BitSet successBits;
-	protected BitSet coinBits;
+	private static ExecutorService workers;
+
+	// Bit n = (slot * attempts + attempt) of each, in the same
+	// order as BitSet.valueOf would read the bytes on the wire.
+	protected long[] coinFlips;
+	protected int flipBytes;
+
+	protected long[] resultBits;
+	protected long[] successBits;
+	protected long[] coinBits;
 
 	public BinaryControlSlot(Scheduler scheduler, int attempts) throws IllegalArgumentException {
 		super(scheduler, attempts);
-		if (attempts % 8 != 0) {
-			String msg = "attempts must be evenly divisible by 8";
+		if (attempts < 1) {
+			String msg = "attempts must be positive";
 			throw new IllegalArgumentException(msg);
 		}
 
 		final int slotCount = scheduler.getSlotCount();
-		final int bits = attempts * slotCount;
-		final int bytes = bits / 8;
-		this.coinFlips = new byte[bytes];
-
-		// Generate random bits for all slots and then zero out
-		// the ones we don't actually need.
-		random.nextBytes(coinFlips);
-
-		for (int i = 0; i < coinFlips.length; i++) {
-			final int slotIndex = i / (attempts / 8);
-			if (scheduler.isEmpty(slotIndex)) {
-				coinFlips[i] = 0;
+		final long bits = (long) attempts * slotCount;
+		if (bits > Integer.MAX_VALUE - 63) {
+			String msg = "too many slots and attempts for one control slot";
+			throw new IllegalArgumentException(msg);
+		}
+		this.flipBytes = (int) ((bits + 7) / 8);
+		this.coinFlips = new long[words((int) bits)];
+
+		// Only generate random bits for the slots we're in.
+		for (int i = 0; i < slotCount; i++) {
+			if (!scheduler.isEmpty(i)) {
+				setRandomBits(coinFlips, i * attempts, (i + 1) * attempts);
 			}
 		}
 	}
 
 	@Override
 	public int getLength() {
-		return coinFlips.length;
+		return flipBytes;
 	}
 
 	@Override
 	public byte[] getSlot(byte[] buffer) {
-		System.arraycopy(coinFlips, 0, buffer, 0, coinFlips.length);
+		final ByteBuffer wrapper = ByteBuffer.wrap(buffer).order(ByteOrder.LITTLE_ENDIAN);
+		final int whole = flipBytes / 8;
+		for (int w = 0; w < whole; w++) {
+			wrapper.putLong(w * 8, coinFlips[w]);
+		}
+		for (int b = whole * 8; b < flipBytes; b++) {
+			buffer[b] = (byte) (coinFlips[b >>> 3] >>> ((b & 7) * 8));
+		}
 		return buffer;
 	}
 
 	@Override
 	public void setResult(byte[] result) {
-		// valueOf makes its own copy of the array so its
-		// safe to just pass it in here.
-		final BitSet resultBits = BitSet.valueOf(result);
-		final BitSet flipBits = BitSet.valueOf(coinFlips);
+		final ByteBuffer wrapper = ByteBuffer.wrap(result).order(ByteOrder.LITTLE_ENDIAN);
+		this.resultBits = new long[coinFlips.length];
+		final int whole = flipBytes / 8;
+		for (int w = 0; w < whole; w++) {
+			resultBits[w] = wrapper.getLong(w * 8);
+		}
+		for (int b = whole * 8; b < flipBytes; b++) {
+			resultBits[b >>> 3] |= (result[b] & 0xffL) << ((b & 7) * 8);
+		}
 
 		// Keep track of whether we were successful at all within
 		// the slot and, if so, which of our coin flips led to it.
 		// - Heuristic: Choose the first successful attempt.
 		final int slotCount = scheduler.getSlotCount();
-		this.successBits = new BitSet(slotCount);
-		this.coinBits = new BitSet(slotCount);
+		this.successBits = new long[words(slotCount)];
+		this.coinBits = new long[successBits.length];
 
-		// Go through and find the first bit set for each slot.
-		// Check our coin flip for the corresponding attempt and
-		// stash that away for later.
-		for (int i = 0; i < slotCount; i++) {
-			for (int j = 0; j < attempts; j++) {
-				final int n = i * attempts + j;
-				if (resultBits.get(n)) {
-					successBits.set(i);
-					coinBits.set(i, flipBits.get(n));
-					break;
+		if (slotCount < PARALLEL_SLOTS) {
+			findFirstAttempts(0, slotCount);
+			return;
+		}
+
+		// Split on word boundaries, so each part writes its own
+		// words of successBits and coinBits.
+		final int parts = Runtime.getRuntime().availableProcessors();
+		final int step = ((slotCount / parts + 63) / 64) * 64;
+		List<Future<?>> futures = new ArrayList<Future<?>>(parts);
+		for (int from = 0; from < slotCount; from += step) {
+			final int start = from, end = Math.min(slotCount, from + step);
+			futures.add(getWorkers().submit(new Runnable() {
+				public void run() {
+					findFirstAttempts(start, end);
+				}
+			}));
+		}
+		try {
+			for (Future<?> future : futures) {
+				future.get();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("interrupted processing control slot", e);
+		} catch (ExecutionException e) {
+			throw new IllegalStateException("error processing control slot", e.getCause());
+		}
+	}
+
+	/**
+	 * Go through and find the first bit set for each slot in
+	 * [from, to). Check our coin flip for the corresponding
+	 * attempt and stash that away for later.
+	 */
+	private void findFirstAttempts(int from, int to) {
+		for (int i = from; i < to; i++) {
+			final int n = firstSetBit(resultBits, i * attempts, (i + 1) * attempts);
+			if (n >= 0) {
+				successBits[i >>> 6] |= 1L << i;
+				if (getBit(coinFlips, n)) {
+					coinBits[i >>> 6] |= 1L << i;
 				}
 			}
 		}
@@ -96,9 +157,62 @@ public class BinaryControlSlot extends DummyControlSlot {
 
 	@Override
 	public byte[] getSlot(int index, byte[] buffer, boolean raw) {
-		if (coinBits.get(index) || raw) {
+		if (getBit(coinBits, index) || raw) {
 			scheduler.getSlot(index, buffer);
 		}
 		return buffer;
 	}
+
+	private void setRandomBits(long[] words, int from, int to) {
+		int n = from;
+		while (n < to) {
+			final int bit = n & 63;
+			final int count = Math.min(64 - bit, to - n);
+			final long mask = (count == 64) ? -1L : ((1L << count) - 1) << bit;
+			words[n >>> 6] |= random.nextLong() & mask;
+			n += count;
+		}
+	}
+
+	protected static int words(int bits) {
+		return (bits + 63) >>> 6;
+	}
+
+	protected static boolean getBit(long[] words, int n) {
+		return (words[n >>> 6] & (1L << n)) != 0;
+	}
+
+	/**
+	 * @return the index of the first bit set in [from, to), or
+	 * -1 if there isn't one
+	 */
+	protected static int firstSetBit(long[] words, int from, int to) {
+		if (from >= to) {
+			return -1;
+		}
+		int w = from >>> 6;
+		long word = words[w] & (-1L << from);
+		while (word == 0) {
+			if (++w << 6 >= to) {
+				return -1;
+			}
+			word = words[w];
+		}
+		final int n = (w << 6) + Long.numberOfTrailingZeros(word);
+		return (n < to) ? n : -1;
+	}
+
+	private static synchronized ExecutorService getWorkers() {
+		if (workers == null) {
+			final int threads = Runtime.getRuntime().availableProcessors();
+			workers = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "control-slot-worker");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return workers;
+	}
 }
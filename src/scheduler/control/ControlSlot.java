@@ -26,5 +26,12 @@ public interface ControlSlot {
 	public boolean isEmpty(int index);
 	public int getLength(int index);
 
+	/**
+	 * @return the number of bytes every participant sends for
+	 * the index-th slot, or 0 if lengths aren't reserved (and
+	 * every slot has the default length)
+	 */
+	public int getReservedLength(int index);
+
 	public byte[] getSlot(int index, byte[] buffer, boolean raw);
 }
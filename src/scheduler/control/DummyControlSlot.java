@@ -42,6 +42,10 @@ public class DummyControlSlot implements ControlSlot {
 		return scheduler.getLength(index);
 	}
 
+	public int getReservedLength(int index) {
+		return 0;
+	}
+
 	public byte[] getSlot(int index, byte[] buffer, boolean raw) {
 		if (!isEmpty(index) && (random.nextBoolean() || raw))
 			scheduler.getSlot(index, buffer);
@@ -0,0 +1,151 @@
+package scheduler.control;
+
+import java.util.logging.Logger;
+
+import scheduler.SlotUtils;
+
+/**
+ * A PruningBinaryControlSlot that also reserves the length of
+ * each slot, so that data slots go out at the size of their
+ * contents rather than all at the default length.
+ * After the coin flips comes a six-byte field for every slot
+ * (not every flip, so it grows with the slots alone), which a
+ * client fills in, wherever it has a slot, with the encoded
+ * length of its slot, a random nonce, and a check on the two.
+ * Where only one client is in a slot, the combined field holds
+ * just its length. Where several are, the nonces make the XOR
+ * of their fields look random whatever their lengths, so the
+ * check fails but for about one time in 2^16, and everyone
+ * falls back to the full length, which the winner of the coin
+ * flips always fits in. If a garbled length passes the check
+ * anyway and the winner doesn't fit, its slot is held back and
+ * counted.
+ */
+public class LengthReservingControlSlot extends PruningBinaryControlSlot {
+	private static final int FIELD_BYTES = 6;
+
+	private int maxLength;
+	private byte[] lengthFields;
+
+	// Reserved length of each (unpruned) slot.
+	private int[] reserved;
+
+	// Slots we won but couldn't fit in their reserved length.
+	private int dropped;
+
+	/**
+	 * @param maxLength the largest a slot can be, metadata
+	 * included; usually the default slot length
+	 */
+	public LengthReservingControlSlot(Scheduler scheduler, int attempts, int maxLength)
+			throws IllegalArgumentException {
+		super(scheduler, attempts);
+		if (maxLength < SlotUtils.METADATA_BYTES || maxLength > 0xffff) {
+			String msg = "maxLength must be at least the slot metadata and at most 0xffff";
+			throw new IllegalArgumentException(msg);
+		}
+		this.maxLength = maxLength;
+
+		final int slotCount = scheduler.getSlotCount();
+		this.lengthFields = new byte[slotCount * FIELD_BYTES];
+		for (int i = 0; i < slotCount; i++) {
+			if (scheduler.isEmpty(i)) {
+				continue;
+			}
+			final int length = clamp(SlotUtils.METADATA_BYTES + scheduler.getLength(i));
+			final int nonce = random.nextInt() & 0xffff;
+			putShort(i * FIELD_BYTES, length);
+			putShort(i * FIELD_BYTES + 2, nonce);
+			putShort(i * FIELD_BYTES + 4, check(length, nonce));
+		}
+	}
+
+	@Override
+	public int getLength() {
+		return flipBytes + lengthFields.length;
+	}
+
+	@Override
+	public byte[] getSlot(byte[] buffer) {
+		super.getSlot(buffer);
+		System.arraycopy(lengthFields, 0, buffer, flipBytes, lengthFields.length);
+		return buffer;
+	}
+
+	@Override
+	public void setResult(byte[] result) {
+		super.setResult(result);
+
+		// Only slots some flip got through in are sent at all.
+		this.reserved = new int[scheduler.getSlotCount()];
+		this.dropped = 0;
+		for (int w = 0; w < successBits.length; w++) {
+			long word = successBits[w];
+			while (word != 0) {
+				final int i = (w << 6) + Long.numberOfTrailingZeros(word);
+				final int field = flipBytes + i * FIELD_BYTES;
+				final int length = getShort(result, field);
+				final int nonce = getShort(result, field + 2);
+				final int check = getShort(result, field + 4);
+				reserved[i] = (check == check(length, nonce)) ? clamp(length) : maxLength;
+				word &= word - 1;
+			}
+		}
+	}
+
+	@Override
+	public int getReservedLength(int index) {
+		return reserved[convertIndex(index)];
+	}
+
+	/**
+	 * @return the number of slots we won the coin flips for but
+	 * held back, since they didn't fit in the length reserved
+	 */
+	public int getDroppedCount() {
+		return dropped;
+	}
+
+	@Override
+	public byte[] getSlot(int index, byte[] buffer, boolean raw) {
+		// If the length reserved isn't ours, we shared the slot
+		// with someone and our data mightn't fit.
+		final int needed = SlotUtils.METADATA_BYTES + getLength(index);
+		if (!raw && needed > buffer.length) {
+			if (getBit(coinBits, convertIndex(index))) {
+				String fmt = "Slot %d reserved %d bytes, too few for %d; held back.";
+				Logger.getGlobal().warning(String.format(fmt, index, buffer.length, needed));
+				dropped++;
+			}
+			return buffer;
+		}
+		return super.getSlot(index, buffer, raw);
+	}
+
+	/**
+	 * @return 16 bits that depend on length and nonce together
+	 * non-linearly, so the XOR of several clients' checks is
+	 * unlikely to be the check of the XOR of their fields; the
+	 * constant keeps an all-zero field from passing
+	 */
+	private static int check(int length, int nonce) {
+		int h = ((length << 16) | nonce) * 0x9e3779b1;
+		h ^= h >>> 15;
+		h *= 0x85ebca77;
+		h ^= h >>> 13;
+		return (h ^ 0x5bd1) & 0xffff;
+	}
+
+	private void putShort(int offset, int value) {
+		lengthFields[offset] = (byte) (value >>> 8);
+		lengthFields[offset + 1] = (byte) value;
+	}
+
+	private static int getShort(byte[] buffer, int offset) {
+		return ((buffer[offset] & 0xff) << 8) | (buffer[offset + 1] & 0xff);
+	}
+
+	private int clamp(int length) {
+		return Math.max(SlotUtils.METADATA_BYTES, Math.min(length, maxLength));
+	}
+}
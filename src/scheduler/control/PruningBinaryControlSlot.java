@@ -1,7 +1,5 @@
 package scheduler.control;
 
-import java.util.BitSet;
-
 public class PruningBinaryControlSlot extends BinaryControlSlot {
 
 	private int slotCount;
@@ -15,13 +13,21 @@ public class PruningBinaryControlSlot extends BinaryControlSlot {
 	public void setResult(byte[] result) {
 		super.setResult(result);
 
-		this.slotCount = successBits.cardinality();
+		int count = 0;
+		for (long word : successBits) {
+			count += Long.bitCount(word);
+		}
+		this.slotCount = count;
 		indexMap = new int[slotCount];
 
-		int converted = -1;
-		for (int i = 0; i < slotCount; i++) {
-			converted = successBits.nextSetBit(converted + 1);
-			indexMap[i] = converted;
+		// Pick the set bits out of each word in turn.
+		int converted = 0;
+		for (int w = 0; w < successBits.length; w++) {
+			long word = successBits[w];
+			while (word != 0) {
+				indexMap[converted++] = (w << 6) + Long.numberOfTrailingZeros(word);
+				word &= word - 1;
+			}
 		}
 	}
 
@@ -45,7 +51,7 @@ public class PruningBinaryControlSlot extends BinaryControlSlot {
 		return super.getSlot(convertIndex(index), buffer, raw);
 	}
 
-	private int convertIndex(int index) {
+	protected int convertIndex(int index) {
 		return indexMap[index];
 	}
 }
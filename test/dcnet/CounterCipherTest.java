@@ -0,0 +1,60 @@
+package dcnet;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+/**
+ * Checks that the keystream really seeks: the pad at any offset
+ * into a slot is the same bytes as that part of the pad computed
+ * from the start, across block and batch boundaries; and that
+ * every part of the address, and the key, changes the pad.
+ */
+public class CounterCipherTest {
+	private static final int SLOT_BYTES = 2100;
+
+	@Test
+	public void padAtOffsetMatchesPadFromStart() {
+		final CounterCipher cipher = new CounterCipher(12345);
+		final byte[] whole = pad(cipher, 3, 7, 1, 0, SLOT_BYTES);
+
+		final int[] offsets = { 0, 1, 15, 16, 17, 31, 1000, 1023, 1024, 1025, 2000 };
+		final int[] lengths = { 1, 16, 33, 100 };
+		for (int offset : offsets) {
+			for (int length : lengths) {
+				final byte[] expected = Arrays.copyOfRange(whole, offset, offset + length);
+				assertArrayEquals("offset " + offset + ", length " + length,
+						expected, pad(cipher, 3, 7, 1, offset, length));
+			}
+		}
+	}
+
+	@Test
+	public void everyAddressGetsItsOwnPad() {
+		final CounterCipher cipher = new CounterCipher(12345);
+		final byte[][] pads = {
+			pad(cipher, 3, 7, 1, 0, 32),
+			pad(cipher, 4, 7, 1, 0, 32),
+			pad(cipher, 3, 8, 1, 0, 32),
+			pad(cipher, 3, 7, 2, 0, 32),
+			pad(cipher, 3, SlotCipher.CONTROL_SLOT, 1, 0, 32),
+			pad(new CounterCipher(12346), 3, 7, 1, 0, 32),
+		};
+		for (int i = 0; i < pads.length; i++) {
+			assertFalse("pad " + i + " is zero", Arrays.equals(new byte[32], pads[i]));
+			for (int j = i + 1; j < pads.length; j++) {
+				assertFalse("pads " + i + " and " + j + " match", Arrays.equals(pads[i], pads[j]));
+			}
+		}
+	}
+
+	private static byte[] pad(CounterCipher cipher, int round, int slot, int attempt,
+			int offset, int length) {
+		final byte[] pad = new byte[length];
+		cipher.xorKeyStream(round, slot, attempt, offset, pad, 0, length);
+		return pad;
+	}
+}
@@ -0,0 +1,45 @@
+package dcnet;
+
+import static org.junit.Assert.assertArrayEquals;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Checks that splitting the secrets over threads changes none
+ * of the pads, addressed or streamed, whether or not a call is
+ * big enough to be split.
+ */
+public class CounterSlotCipherTest {
+	@Test
+	public void splitPadsMatchOneThread() {
+		final Random random = new Random(3);
+		final long[] secrets = new long[23];
+		for (int i = 0; i < secrets.length; i++) {
+			secrets[i] = random.nextLong();
+		}
+
+		// 23 secrets need just under 2850 bytes to be split.
+		final int[] lengths = { 40, 3000, 8192, 2849 };
+		for (int threads : new int[] { 2, 4 }) {
+			final CounterSlotCipher one = new CounterSlotCipher(secrets);
+			final CounterSlotCipher split = new CounterSlotCipher(secrets, threads);
+			try {
+				for (int slot = 0; slot < lengths.length; slot++) {
+					final byte[] expected = new byte[lengths[slot] + 5];
+					random.nextBytes(expected);
+					final byte[] actual = expected.clone();
+
+					one.xorKeyStream(expected, 5, lengths[slot], 1, slot, 0);
+					split.xorKeyStream(actual, 5, lengths[slot], 1, slot, 0);
+					one.xorKeyStream(expected, 0, expected.length);
+					split.xorKeyStream(actual, 0, actual.length);
+					assertArrayEquals(threads + " threads, slot " + slot, expected, actual);
+				}
+			} finally {
+				split.close();
+			}
+		}
+	}
+}
@@ -0,0 +1,35 @@
+package dcnet;
+
+import static org.junit.Assert.assertArrayEquals;
+
+import org.junit.Test;
+
+/**
+ * Checks that splitting the sequential keystreams over threads
+ * leaves every stream advancing in step with SlotCipher's, over
+ * a run of calls some of which are split and some not.
+ */
+public class ParallelSlotCipherTest {
+	@Test
+	public void streamsStayInStep() {
+		final long[] secrets = new long[50];
+		for (int i = 0; i < secrets.length; i++) {
+			secrets[i] = 1000 + 7 * i;
+		}
+
+		final SlotCipher one = new SlotCipher(secrets);
+		final ParallelSlotCipher split = new ParallelSlotCipher(secrets, 3);
+		try {
+			// 50 secrets need 1311 bytes or more to be split.
+			for (int length : new int[] { 1, 13, 364, 1400, 40, 5000, 121, 2000, 7 }) {
+				final byte[] expected = new byte[length];
+				final byte[] actual = new byte[length];
+				one.xorKeyStream(expected);
+				split.xorKeyStream(actual);
+				assertArrayEquals(length + " bytes", expected, actual);
+			}
+		} finally {
+			split.close();
+		}
+	}
+}
@@ -0,0 +1,63 @@
+package dcnet;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import org.junit.Test;
+
+/**
+ * Checks that reopening an archive cuts off a block torn by a
+ * crash, so rounds appended afterwards can still be found, and
+ * that round ids carry on from the last run's.
+ */
+public class RoundArchiveTest {
+	private static final byte[] FIRST = { 'a', 'b', 'c' };
+	private static final byte[] SECOND = { 'x', 'y' };
+
+	@Test
+	public void reopenDropsTornBlockAndContinuesRounds() throws IOException {
+		final File file = File.createTempFile("archive", ".bin");
+		file.deleteOnExit();
+		try {
+			RoundArchive archive = new RoundArchive(file.getPath());
+			assertEquals(0, archive.getNextRound());
+			archiveRound(archive, FIRST);
+			archiveRound(archive, FIRST);
+			archive.close();
+
+			// Half a block, as if the server died writing it.
+			final long good = file.length();
+			try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+				raf.seek(good);
+				raf.writeInt(RoundArchive.BLOCK_MAGIC);
+				raf.writeShort(RoundArchive.VERSION);
+				raf.write(new byte[30]);
+			}
+
+			archive = new RoundArchive(file.getPath());
+			assertEquals(good, file.length());
+			assertEquals(2, archive.getNextRound());
+			archiveRound(archive, SECOND);
+			archive.close();
+
+			try (ArchiveReader reader = new ArchiveReader(file.getPath())) {
+				assertEquals(3, reader.getRoundCount());
+				assertArrayEquals(new int[] { 0, 1 }, reader.findRounds(FIRST, 0, 10));
+				assertArrayEquals(new int[] { 2 }, reader.findRounds(SECOND, 0, 10));
+				assertArrayEquals(new int[0], reader.findRounds(SECOND, 0, 1));
+			}
+		} finally {
+			file.delete();
+		}
+	}
+
+	private static void archiveRound(RoundArchive archive, byte[] element) throws IOException {
+		archive.beginRound();
+		archive.add(5, 0, 0, element, 0, element.length);
+		archive.endRound();
+	}
+}
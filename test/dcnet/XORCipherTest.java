@@ -0,0 +1,90 @@
+package dcnet;
+
+import static org.junit.Assert.assertArrayEquals;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Checks the word-wide XOR kernels against the original byte
+ * loops, for every length up to a few words past the threshold
+ * and every alignment of both offsets, so each unaligned head
+ * and tail is covered.
+ */
+public class XORCipherTest {
+	private static final int MAX_LENGTH = 80;
+	private static final int MAX_OFFSET = 9;
+
+	private final Random random = new Random(42);
+
+	@Test
+	public void xorWordsMatchesBytewise() {
+		for (int length = 0; length <= MAX_LENGTH; length++) {
+			for (int srcOffset = 0; srcOffset < MAX_OFFSET; srcOffset++) {
+				for (int dstOffset = 0; dstOffset < MAX_OFFSET; dstOffset++) {
+					final byte[] src = randomBytes(srcOffset + length + MAX_OFFSET);
+					final byte[] expected = randomBytes(dstOffset + length + MAX_OFFSET);
+					final byte[] words = expected.clone();
+					final byte[] dispatched = expected.clone();
+
+					XORCipher.xorBytesBytewise(src, srcOffset, expected, dstOffset, length);
+					XORCipher.xorWords(src, srcOffset, words, dstOffset, length);
+					XORCipher.xorBytes(src, srcOffset, dispatched, dstOffset, length);
+					assertArrayEquals(message(length, srcOffset, dstOffset), expected, words);
+					assertArrayEquals(message(length, srcOffset, dstOffset), expected, dispatched);
+				}
+			}
+		}
+	}
+
+	@Test
+	public void xorBufferMatchesBytewise() {
+		for (int length = 0; length <= MAX_LENGTH; length++) {
+			for (int srcOffset = 0; srcOffset < MAX_OFFSET; srcOffset++) {
+				for (int dstOffset = 0; dstOffset < MAX_OFFSET; dstOffset++) {
+					final byte[] src = randomBytes(srcOffset + length + MAX_OFFSET);
+					final ByteBuffer direct = ByteBuffer.allocateDirect(src.length);
+					direct.put(src).position(3);
+
+					final byte[] expected = randomBytes(dstOffset + length + MAX_OFFSET);
+					final byte[] fromHeap = expected.clone();
+					final byte[] fromDirect = expected.clone();
+
+					XORCipher.xorBytesBytewise(src, srcOffset, expected, dstOffset, length);
+					XORCipher.xorBytes(ByteBuffer.wrap(src), srcOffset, fromHeap, dstOffset, length);
+					XORCipher.xorBytes(direct, srcOffset, fromDirect, dstOffset, length);
+					assertArrayEquals(message(length, srcOffset, dstOffset), expected, fromHeap);
+					assertArrayEquals(message(length, srcOffset, dstOffset), expected, fromDirect);
+				}
+			}
+		}
+	}
+
+	@Test
+	public void keyStreamMatchesBytewise() {
+		// Lengths that straddle the refill buffer's boundary.
+		final int[] lengths = { 0, 1, 7, 31, 32, 33, 100, 1023, 1024, 1025, 3000 };
+		final XORCipher words = new XORCipher(7, 1024);
+		final XORCipher bytewise = new XORCipher(7, 1024);
+		for (int length : lengths) {
+			final byte[] src = randomBytes(length);
+			final byte[] expected = new byte[length];
+			final byte[] actual = new byte[length];
+			bytewise.xorKeyStreamBytewise(src, expected);
+			words.xorKeyStream(src, actual);
+			assertArrayEquals("length " + length, expected, actual);
+		}
+	}
+
+	private byte[] randomBytes(int length) {
+		final byte[] bytes = new byte[length];
+		random.nextBytes(bytes);
+		return bytes;
+	}
+
+	private static String message(int length, int srcOffset, int dstOffset) {
+		return String.format("length %d, src offset %d, dst offset %d", length, srcOffset, dstOffset);
+	}
+}